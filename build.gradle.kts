@@ -1,4 +1,5 @@
 import org.jetbrains.intellij.platform.gradle.IntelliJPlatformType
+import org.jetbrains.intellij.platform.gradle.TestFrameworkType
 // Imported explicitly: inside this script "java" resolves to the Java plugin extension, so the
 // fully qualified java.* package names would not resolve.
 import java.security.cert.CertificateFactory
@@ -24,8 +25,13 @@ dependencies {
     antlr("org.antlr:antlr4:4.13.2")
     implementation("org.antlr:antlr4-runtime:4.13.2")
 
+    testImplementation("junit:junit:4.13.2")
+    // The platform's JUnit 4 support refers to opentest4j, which it does not bring along
+    testImplementation("org.opentest4j:opentest4j:1.3.0")
+
     intellijPlatform {
         intellijIdeaCommunity(providers.gradleProperty("platformVersion"))
+        testFramework(TestFrameworkType.Platform)
     }
 }
 
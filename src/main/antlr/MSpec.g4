@@ -422,8 +422,11 @@ BLOCK_COMMENT
  : '/*' .*? '*/' -> channel(HIDDEN)
  ;
 
+// The predicate is at the right edge on purpose: at the left edge it is part of the start state
+// of every token, and ANTLR does not cache DFA states holding predicates, so every token would be
+// lexed by full ATN simulation.
 EmptyLine
- : {getCharPositionInLine() == 0}? [ \t]* '\r'? '\n' -> channel(HIDDEN)
+ : [ \t]* '\r'? '\n' {_tokenStartCharPositionInLine == 0}? -> channel(HIDDEN)
  ;
 
 NEWLINE
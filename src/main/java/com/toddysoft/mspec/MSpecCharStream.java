@@ -0,0 +1,86 @@
+package com.toddysoft.mspec;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * ANTLR {@link CharStream} reading directly from the editor's {@link CharSequence}.
+ * <p>
+ * Indices are buffer offsets, so tokens come out of the lexer already positioned in the buffer and
+ * nothing has to be copied into a String first. Unlike {@code CharStreams.fromString}, which works
+ * on code points, every UTF-16 char is one symbol here, which is what IntelliJ offsets count.
+ */
+final class MSpecCharStream implements CharStream {
+    private final CharSequence buffer;
+    private final int startOffset;
+    private final int endOffset;
+    private int index;
+
+    MSpecCharStream(CharSequence buffer, int startOffset, int endOffset) {
+        this.buffer = buffer;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.index = startOffset;
+    }
+
+    @Override
+    public void consume() {
+        if (index >= endOffset) {
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        index++;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0) {
+            return 0;
+        }
+        int position = i > 0 ? index + i - 1 : index + i;
+        if (position < startOffset || position >= endOffset) {
+            return IntStream.EOF;
+        }
+        return buffer.charAt(position);
+    }
+
+    @Override
+    public int mark() {
+        // Everything is in memory already, so marks need no bookkeeping.
+        return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return index;
+    }
+
+    @Override
+    public void seek(int index) {
+        this.index = Math.max(startOffset, Math.min(index, endOffset));
+    }
+
+    @Override
+    public int size() {
+        return endOffset - startOffset;
+    }
+
+    @Override
+    public String getSourceName() {
+        return IntStream.UNKNOWN_SOURCE_NAME;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = Math.max(startOffset, interval.a);
+        int stop = Math.min(endOffset - 1, interval.b);
+        if (stop < start) {
+            return "";
+        }
+        return buffer.subSequence(start, stop + 1).toString();
+    }
+}
@@ -1,18 +1,25 @@
 package com.toddysoft.mspec;
 
 import com.intellij.codeInsight.completion.*;
+import com.intellij.codeInsight.lookup.LookupElement;
 import com.intellij.codeInsight.lookup.LookupElementBuilder;
+import com.intellij.openapi.actionSystem.IdeActions;
+import com.intellij.openapi.keymap.KeymapUtil;
 import com.intellij.patterns.PlatformPatterns;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.util.ProcessingContext;
 import com.toddysoft.mspec.psi.MSpecFile;
+import com.toddysoft.mspec.util.MSpecFieldTable;
+import com.toddysoft.mspec.util.MSpecFileModel;
+import com.toddysoft.mspec.util.MSpecProjectTypeNames;
 import com.toddysoft.mspec.util.MSpecTypeIndex;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Provides code completion for MSpec files.
@@ -20,7 +27,14 @@ import java.util.regex.Pattern;
  * Supports:
  * - Definition type completion after [ at top level (type, enum, dataIo, discriminatedType)
  * - Field type completion after [ inside type definitions (simple, array, const, etc.)
- * - Data type completion (primitives + custom types)
+ * - Data type completion (primitives + custom types in scope, ranked by how often they are used;
+ *   on a second invocation also the types of other packages, from {@link MSpecProjectTypeNames})
+ * - Parameter, field and enum constant completion in tick expressions and typeSwitch discriminators,
+ *   also after a qualifier like 'header. ({@link MSpecFieldTable})
+ * <p>
+ * The context is the role {@link MSpecFileModel} gives the word at the caret, computed over just
+ * the top-level definition around it, so it costs the same however large the file is. The lookup
+ * elements of keywords and primitives are built once and shared by all completions.
  */
 public class MSpecCompletionContributor extends CompletionContributor {
 
@@ -57,23 +71,6 @@ public class MSpecCompletionContributor extends CompletionContributor {
         "virtual"
     };
 
-    // Primitive data types
-    private static final String[] PRIMITIVE_TYPES = {
-        "bit",
-        "byte",
-        "int",
-        "uint",
-        "vint",
-        "vuint",
-        "float",
-        "ufloat",
-        "string",
-        "vstring",
-        "time",
-        "date",
-        "dateTime"
-    };
-
     // Array loop types
     private static final String[] ARRAY_LOOP_TYPES = {
         "count",
@@ -81,6 +78,22 @@ public class MSpecCompletionContributor extends CompletionContributor {
         "terminated"
     };
 
+    private static final List<LookupElement> DEFINITION_TYPE_ELEMENTS = keywordElements(DEFINITION_TYPES, "definition type");
+    private static final List<LookupElement> FIELD_TYPE_ELEMENTS = keywordElements(FIELD_TYPES, "field type");
+    private static final List<LookupElement> PRIMITIVE_TYPE_ELEMENTS = keywordElements(
+            MSpecFileModel.PRIMITIVE_TYPES.toArray(String[]::new), "primitive type");
+    private static final List<LookupElement> ARRAY_LOOP_TYPE_ELEMENTS = keywordElements(ARRAY_LOOP_TYPES, "array loop type");
+
+    private static List<LookupElement> keywordElements(String[] keywords, String typeText) {
+        List<LookupElement> elements = new ArrayList<>(keywords.length);
+        for (String keyword : keywords) {
+            elements.add(LookupElementBuilder.create(keyword)
+                    .withTypeText(typeText)
+                    .withBoldness(true));
+        }
+        return List.copyOf(elements);
+    }
+
     public MSpecCompletionContributor() {
         // Provide completion for all MSpec files
         extend(CompletionType.BASIC,
@@ -109,7 +122,7 @@ public class MSpecCompletionContributor extends CompletionContributor {
 
                             case DATA_TYPE:
                                 // Typing a data type - suggest primitives and custom types
-                                addDataTypeCompletions(result, file);
+                                addDataTypeCompletions(result, file, parameters);
                                 break;
 
                             case ARRAY_LOOP_TYPE:
@@ -117,11 +130,16 @@ public class MSpecCompletionContributor extends CompletionContributor {
                                 addArrayLoopTypeCompletions(result);
                                 break;
 
+                            case FIELD_REFERENCE:
+                                // In a tick expression or typeSwitch discriminator - suggest names of the type
+                                addFieldReferenceCompletions(result, parameters);
+                                break;
+
                             case UNKNOWN:
                                 // Provide both as fallback
                                 addDefinitionTypeCompletions(result);
                                 addFieldTypeCompletions(result);
-                                addDataTypeCompletions(result, file);
+                                addDataTypeCompletions(result, file, parameters);
                                 break;
                         }
                     }
@@ -129,90 +147,48 @@ public class MSpecCompletionContributor extends CompletionContributor {
     }
 
     /**
-     * Analyzes the context to determine what kind of completion to provide
+     * Analyzes the context to determine what kind of completion to provide, from the role the
+     * file model gives the word being completed.
+     * <p>
+     * Every top-level definition starts at an opening bracket outside of any other, so the model of
+     * the text from the start of the enclosing one up to the caret gives the word the same role as
+     * the model of the whole file would.
      */
     private CompletionContext analyzeContext(PsiElement position) {
-        String textBeforeCursor = getTextBeforeCursor(position, 1000);
-
-        // Check if we're in the array loop type position
-        // Pattern: [array typeReference fieldName <cursor>
-        // or: [manualArray typeReference fieldName <cursor>
-        // We need to match: [array/manualArray followed by a type, then a field name
-        Pattern arrayLoopTypePattern = Pattern.compile("\\[\\s*(?:array|manualArray)\\s+\\S+\\s+\\S+\\s+\\S*$");
-        if (arrayLoopTypePattern.matcher(textBeforeCursor).find()) {
-            return CompletionContext.ARRAY_LOOP_TYPE;
-        }
-
-        // Check if we're right after an opening bracket
-        // Pattern: [ followed by optional whitespace
-        if (textBeforeCursor.matches(".*\\[\\s*$")) {
-            // Determine if we're at the top level or inside a type definition
-            if (isInsideTypeDefinition(textBeforeCursor)) {
-                return CompletionContext.FIELD_TYPE;
-            } else {
-                return CompletionContext.DEFINITION_TYPE;
-            }
-        }
-
-        // Check if we're in a field definition after a field type keyword
-        // Pattern: [simple uint, [array byte, etc.
-        // Look for: [ fieldType whitespace ...
-        Pattern fieldPattern = Pattern.compile("\\[\\s*(" + String.join("|", FIELD_TYPES) + ")\\s+\\S*$");
-        if (fieldPattern.matcher(textBeforeCursor).find()) {
-            return CompletionContext.DATA_TYPE;
-        }
-
-        // Check if we're after a type definition keyword
-        // Pattern: [type SomeName, [enum uint 8 SomeName
-        Pattern typeDefPattern = Pattern.compile("\\[\\s*(?:type|enum|dataIo|discriminatedType)\\s+.*$");
-        if (typeDefPattern.matcher(textBeforeCursor).find()) {
-            // Could be completing the type name or nothing - don't suggest data types here
+        PsiFile file = position.getContainingFile();
+        if (file == null) {
             return CompletionContext.UNKNOWN;
         }
 
-        return CompletionContext.UNKNOWN;
-    }
-
-    /**
-     * Checks if we're inside an unclosed type definition
-     */
-    private boolean isInsideTypeDefinition(String textBeforeCursor) {
-        // Count opening and closing brackets to determine nesting level
-        int openCount = 0;
-        int lastDefinitionIndex = -1;
-
-        // Find the last definition type keyword
-        Pattern defPattern = Pattern.compile("\\[\\s*(?:type|enum|dataIo|discriminatedType)\\s+");
-        Matcher matcher = defPattern.matcher(textBeforeCursor);
-        while (matcher.find()) {
-            lastDefinitionIndex = matcher.start();
+        PsiElement topLevel = position;
+        while (topLevel.getParent() != null && !(topLevel.getParent() instanceof PsiFile)) {
+            topLevel = topLevel.getParent();
         }
+        int start = topLevel.getTextRange().getStartOffset();
+        CharSequence text = file.getViewProvider().getContents()
+                .subSequence(start, position.getTextRange().getEndOffset());
 
-        // If we found a definition keyword, count brackets from that point
-        if (lastDefinitionIndex >= 0) {
-            String textAfterDef = textBeforeCursor.substring(lastDefinitionIndex);
-            for (char c : textAfterDef.toCharArray()) {
-                if (c == '[') openCount++;
-                else if (c == ']') openCount--;
-            }
-            // If there are unclosed brackets after the definition, we're inside it
-            return openCount > 0;
-        }
-
-        return false;
-    }
-
-    /**
-     * Gets text before the cursor position for context analysis
-     */
-    private String getTextBeforeCursor(PsiElement position, int maxLength) {
-        try {
-            int offset = position.getTextRange().getStartOffset();
-            PsiFile file = position.getContainingFile();
-            int start = Math.max(0, offset - maxLength);
-            return file.getText().substring(start, offset);
-        } catch (Exception e) {
-            return "";
+        switch (MSpecFileModel.build(text).getRole(position.getTextRange().getStartOffset() - start)) {
+            case LOOP_TYPE:
+                // [array typeReference fieldName <cursor> or [manualArray typeReference fieldName <cursor>
+                return CompletionContext.ARRAY_LOOP_TYPE;
+            case DEFINITION_KEYWORD:
+                // Right after an opening bracket at the top level
+                return CompletionContext.DEFINITION_TYPE;
+            case FIELD_KEYWORD:
+                // Right after an opening bracket inside a type definition
+                return CompletionContext.FIELD_TYPE;
+            case DATA_TYPE:
+            case TYPE_REFERENCE:
+                // [simple <cursor>, [array <cursor>, [enum <cursor> etc.
+                return CompletionContext.DATA_TYPE;
+            case EXPRESSION:
+            case FIELD_REFERENCE:
+                // [array Item items count '<cursor>, [typeSwitch <cursor>
+                return CompletionContext.FIELD_REFERENCE;
+            default:
+                // E.g. completing a type name after [type, or nothing known
+                return CompletionContext.UNKNOWN;
         }
     }
 
@@ -220,52 +196,111 @@ public class MSpecCompletionContributor extends CompletionContributor {
      * Adds definition type completions (type, enum, dataIo, discriminatedType)
      */
     private void addDefinitionTypeCompletions(CompletionResultSet result) {
-        for (String defType : DEFINITION_TYPES) {
-            result.addElement(LookupElementBuilder.create(defType)
-                    .withTypeText("definition type")
-                    .withBoldness(true));
-        }
+        result.addAllElements(DEFINITION_TYPE_ELEMENTS);
     }
 
     /**
      * Adds field type completions (simple, array, const, etc.)
      */
     private void addFieldTypeCompletions(CompletionResultSet result) {
-        for (String fieldType : FIELD_TYPES) {
-            result.addElement(LookupElementBuilder.create(fieldType)
-                    .withTypeText("field type")
-                    .withBoldness(true));
-        }
+        result.addAllElements(FIELD_TYPE_ELEMENTS);
     }
 
     /**
      * Adds data type completions (primitives + custom types found in file)
      */
-    private void addDataTypeCompletions(CompletionResultSet result, PsiFile file) {
+    private void addDataTypeCompletions(CompletionResultSet result, PsiFile file, CompletionParameters parameters) {
         // Add primitive types
-        for (String primitiveType : PRIMITIVE_TYPES) {
-            result.addElement(LookupElementBuilder.create(primitiveType)
-                    .withTypeText("primitive type")
-                    .withBoldness(true));
-        }
+        result.addAllElements(PRIMITIVE_TYPE_ELEMENTS);
 
         // Add custom types found in the file (cached scope-wide lookup)
+        MSpecProjectTypeNames projectTypes = MSpecProjectTypeNames.getInstance(file.getProject());
         Set<String> customTypes = MSpecTypeIndex.getTypesInScope(file);
         for (String customType : customTypes) {
-            result.addElement(LookupElementBuilder.create(customType)
-                    .withTypeText("custom type")
-                    .withIcon(MSpecFileType.INSTANCE.getIcon()));
+            result.addElement(customTypeElement(customType, "custom type", projectTypes));
+        }
+
+        // Types of other packages only on the second invocation, like classes that are not imported
+        String prefix = result.getPrefixMatcher().getPrefix();
+        if (prefix.isEmpty()) {
+            return;
         }
+        if (parameters.getInvocationCount() < 2) {
+            result.addLookupAdvertisement("Press " + KeymapUtil.getFirstKeyboardShortcutText(IdeActions.ACTION_CODE_COMPLETION)
+                    + " again to see types of other packages");
+            return;
+        }
+        projectTypes.processCandidates(prefix, (name, definingFile) -> {
+            if (!customTypes.contains(name) && result.getPrefixMatcher().prefixMatches(name)) {
+                result.addElement(customTypeElement(name, definingFile.getName(), projectTypes));
+            }
+            return true;
+        });
+    }
+
+    /**
+     * A custom type, ranked by how often it is referenced in the project.
+     */
+    private static LookupElement customTypeElement(String name, String typeText, MSpecProjectTypeNames projectTypes) {
+        return PrioritizedLookupElement.withExplicitProximity(LookupElementBuilder.create(name)
+                        .withTypeText(typeText)
+                        .withIcon(MSpecFileType.INSTANCE.getIcon()),
+                projectTypes.getUsageCount(name));
     }
 
     /**
      * Adds array loop type completions (count, length, terminated)
      */
     private void addArrayLoopTypeCompletions(CompletionResultSet result) {
-        for (String loopType : ARRAY_LOOP_TYPES) {
-            result.addElement(LookupElementBuilder.create(loopType)
-                    .withTypeText("array loop type")
-                    .withBoldness(true));
+        result.addAllElements(ARRAY_LOOP_TYPE_ELEMENTS);
+    }
+
+    /**
+     * Adds the parameters, fields or enum constants a name in an expression can refer to: those of
+     * the enclosing type, or after a qualifier those of the type it ends in. Without a qualifier the
+     * custom types are added too, as the start of e.g. 'MessageType.REQUEST'.
+     * <p>
+     * The names are looked up in the original file: the completion copy differs from it only at the
+     * caret, and the tables of the original are cached.
+     */
+    private void addFieldReferenceCompletions(CompletionResultSet result, CompletionParameters parameters) {
+        PsiElement position = parameters.getPosition();
+        int offset = position.getTextRange().getStartOffset();
+        List<String> qualifier = MSpecFieldTable.getQualifier(
+                position.getContainingFile().getViewProvider().getContents(), offset);
+        if (qualifier == null) {
+            return;
+        }
+        PsiFile file = parameters.getOriginalFile();
+        MSpecFieldTable table = MSpecFieldTable.resolveQualifier(file, offset, qualifier);
+        if (table != null) {
+            Set<String> added = new HashSet<>();
+            for (int i = 0; i < table.size(); i++) {
+                // Fields of the same name in several typeSwitch cases are offered once
+                if (!added.add(table.getName(i))) {
+                    continue;
+                }
+                String typeName = table.getTypeName(i);
+                result.addElement(LookupElementBuilder.create(table.getName(i))
+                        .withTypeText(typeName != null ? typeName : getKindText(table.getKind(i))));
+            }
+        }
+        if (qualifier.isEmpty()) {
+            MSpecProjectTypeNames projectTypes = MSpecProjectTypeNames.getInstance(file.getProject());
+            for (String customType : MSpecTypeIndex.getTypesInScope(file)) {
+                result.addElement(customTypeElement(customType, "custom type", projectTypes));
+            }
+        }
+    }
+
+    private static String getKindText(MSpecFieldTable.Kind kind) {
+        switch (kind) {
+            case PARAMETER:
+                return "parameter";
+            case ENUM_CONSTANT:
+                return "enum constant";
+            default:
+                return "field";
         }
     }
 
@@ -277,6 +312,7 @@ public class MSpecCompletionContributor extends CompletionContributor {
         FIELD_TYPE,       // After [ inside type definition - suggest field types (simple, array, etc.)
         DATA_TYPE,        // After field type keyword - suggest data types
         ARRAY_LOOP_TYPE,  // In array field loop type position - suggest count, length, terminated
+        FIELD_REFERENCE,  // In an expression or typeSwitch discriminator - suggest parameters, fields, enum constants
         UNKNOWN           // Unknown context
     }
 }
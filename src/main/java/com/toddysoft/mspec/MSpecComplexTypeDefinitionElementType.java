@@ -0,0 +1,158 @@
+package com.toddysoft.mspec;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IReparseableElementType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Element type of a top-level {@code [type ...]}, {@code [discriminatedType ...]}, {@code [enum ...]}
+ * or {@code [dataIo ...]} block.
+ * <p>
+ * The file parser only finds the closing bracket of a block and collapses it; the block itself is
+ * parsed by {@link MSpecParser} when its children are first needed. An edit inside a block reparses
+ * just that block, so the PSI of every other block, and everything cached on it, stays as it is.
+ */
+public class MSpecComplexTypeDefinitionElementType extends IReparseableElementType {
+    public MSpecComplexTypeDefinitionElementType(@NotNull String debugName) {
+        super(debugName, MSpecLanguage.INSTANCE);
+    }
+
+    /**
+     * A block can be reparsed on its own if relexing the whole file would put both of its ends at the
+     * same place and leave the lexer state after it unchanged. That is checked on the new text and
+     * the text around the block, which the edit has not touched:
+     * <ul>
+     *   <li>it is one bracketed block starting with a complex type keyword, counted the way
+     *       {@link MSpecParser} finds the end of a block when it collapses it,</li>
+     *   <li>its ticks are balanced, so the tokens after it keep their state,</li>
+     *   <li>it has no unterminated block comment or string and no stray {@code * /}, which would
+     *       extend into the text around it,</li>
+     *   <li>the characters right before and after it are no digit or dot, which could otherwise make
+     *       an outer bracket part of a float literal ({@code INTEGER_LITERAL.INTEGER_LITERAL} takes any
+     *       character in the middle).</li>
+     * </ul>
+     */
+    @Override
+    public boolean isReparseable(@NotNull ASTNode currentNode, @NotNull CharSequence newText,
+                                 @NotNull Language fileLanguage, @NotNull Project project) {
+        return !mayJoinLiteral(currentNode.getTreePrev(), true)
+                && !mayJoinLiteral(currentNode.getTreeNext(), false)
+                && isSelfContainedBlock(newText);
+    }
+
+    /**
+     * Without the surrounding text, a block only counts as self-contained if no digit is next to its
+     * outer brackets on the inside.
+     */
+    @Override
+    public boolean isParsable(@Nullable ASTNode parent, @NotNull CharSequence buffer,
+                              @NotNull Language fileLanguage, @NotNull Project project) {
+        int length = buffer.length();
+        return length >= 2 && !Character.isDigit(buffer.charAt(1)) && !Character.isDigit(buffer.charAt(length - 2))
+                && isSelfContainedBlock(buffer);
+    }
+
+    private static boolean mayJoinLiteral(@Nullable ASTNode neighbour, boolean before) {
+        if (neighbour == null || neighbour.getTextLength() == 0) {
+            return false;
+        }
+        // A collapsed block or a leaf has its text at hand
+        CharSequence text = neighbour.getChars();
+        char c = before ? text.charAt(text.length() - 1) : text.charAt(0);
+        return Character.isDigit(c) || c == '.';
+    }
+
+    static boolean isSelfContainedBlock(@NotNull CharSequence text) {
+        int length = text.length();
+        if (length < 2 || text.charAt(0) != '[' || text.charAt(length - 1) != ']') {
+            return false;
+        }
+
+        MSpecHighlightingLexer lexer = new MSpecHighlightingLexer();
+        lexer.start(text, 0, length, MSpecLexerBase.STATE_DEFAULT);
+        BlockEndFinder finder = new BlockEndFinder();
+        boolean first = true;
+        boolean keywordChecked = false;
+        for (IElementType type; (type = lexer.getTokenType()) != null; lexer.advance()) {
+            if (type == MSpecTokenTypes.WHITESPACE || type == MSpecTokenTypes.COMMENT) {
+                continue;
+            }
+            int start = lexer.getTokenStart();
+            int end = lexer.getTokenEnd();
+            char c = text.charAt(start);
+            if (end - start == 1 && (c == '"'
+                    || (c == '/' && end < length && text.charAt(end) == '*')
+                    || (c == '*' && end < length && text.charAt(end) == '/'))) {
+                return false;
+            }
+            if (first) {
+                first = false;
+            } else if (!keywordChecked) {
+                keywordChecked = true;
+                if (!isComplexTypeKeyword(text.subSequence(start, end))) {
+                    return false;
+                }
+            }
+            if (finder.next(text, start, end)) {
+                // The block has to end exactly at the end of the text
+                return end == length && finder.ticksBalanced();
+            }
+        }
+        return false;
+    }
+
+    static boolean isComplexTypeKeyword(@NotNull CharSequence text) {
+        String keyword = text.toString();
+        return keyword.equals("type") || keyword.equals("discriminatedType")
+                || keyword.equals("enum") || keyword.equals("dataIo");
+    }
+
+    /**
+     * Follows the brackets of a block, starting at its opening bracket. A {@code ]} inside a tick
+     * expression that has no matching {@code [} there ends the expression, the same way the parser
+     * recovers from a missing closing tick.
+     */
+    static final class BlockEndFinder {
+        private int depth;
+        private boolean inExpression;
+        private int expressionDepth;
+        private int ticks;
+
+        /**
+         * Feeds the next non-whitespace token and returns true once it closed the block.
+         */
+        boolean next(@NotNull CharSequence text, int start, int end) {
+            if (end - start != 1) {
+                return false;
+            }
+            char c = text.charAt(start);
+            if (c == '\'') {
+                ticks++;
+                inExpression = !inExpression;
+                expressionDepth = 0;
+            } else if (c == '[') {
+                if (inExpression) {
+                    expressionDepth++;
+                } else {
+                    depth++;
+                }
+            } else if (c == ']') {
+                if (inExpression && expressionDepth > 0) {
+                    expressionDepth--;
+                } else {
+                    inExpression = false;
+                    return --depth == 0;
+                }
+            }
+            return false;
+        }
+
+        boolean ticksBalanced() {
+            return ticks % 2 == 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.toddysoft.mspec;
+
+import com.intellij.lang.findUsages.FindUsagesProvider;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.tree.IElementType;
+import com.toddysoft.mspec.psi.MSpecTypeDeclaration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Enables Find Usages on type definitions. The usages themselves come from
+ * {@link MSpecTypeReferencesSearcher}.
+ */
+public class MSpecFindUsagesProvider implements FindUsagesProvider {
+    @Override
+    public boolean canFindUsagesFor(@NotNull PsiElement psiElement) {
+        return psiElement instanceof MSpecTypeDeclaration declaration && declaration.getName() != null;
+    }
+
+    @Nullable
+    @Override
+    public String getHelpId(@NotNull PsiElement psiElement) {
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public String getType(@NotNull PsiElement element) {
+        IElementType type = element.getNode().getElementType();
+        if (type == MSpecTypes.ENUM_DEFINITION) {
+            return "enum";
+        } else if (type == MSpecTypes.DISCRIMINATED_TYPE_DEFINITION) {
+            return "discriminated type";
+        } else if (type == MSpecTypes.DATAIO_DEFINITION) {
+            return "dataIo type";
+        } else if (type == MSpecTypes.CASE_STATEMENT) {
+            return "typeSwitch case";
+        }
+        return "type";
+    }
+
+    @NotNull
+    @Override
+    public String getDescriptiveName(@NotNull PsiElement element) {
+        return getNodeText(element, true);
+    }
+
+    @NotNull
+    @Override
+    public String getNodeText(@NotNull PsiElement element, boolean useFullName) {
+        String name = element instanceof MSpecTypeDeclaration declaration ? declaration.getName() : null;
+        return name != null ? name : "";
+    }
+}
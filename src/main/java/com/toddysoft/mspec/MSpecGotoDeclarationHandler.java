@@ -4,39 +4,25 @@ import com.intellij.codeInsight.navigation.actions.GotoDeclarationHandler;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
+import com.toddysoft.mspec.util.MSpecFieldTable;
+import com.toddysoft.mspec.util.MSpecFileModel;
 import com.toddysoft.mspec.util.MSpecTypeIndex;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 /**
- * Handles "Go to Definition" for type references in MSpec files.
- * Uses GotoDeclarationHandler which works better with ANTLR's flat PSI structure.
+ * Handles "Go to Definition" for type references in MSpec files, and for names in tick expressions
+ * and typeSwitch discriminators, which refer to parameters, fields and enum constants
+ * ({@link MSpecFieldTable}).
+ * Uses GotoDeclarationHandler, so no PsiReferences are needed on the identifier tokens.
  *
- * Type lookups are delegated to {@link MSpecTypeIndex}, which caches per-file type-offset maps.
+ * Type lookups are delegated to {@link MSpecTypeIndex}, which caches compact per-file and per-package
+ * type tables.
  */
 public class MSpecGotoDeclarationHandler implements GotoDeclarationHandler {
 
-    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z][A-Za-z0-9_-]*");
-    private static final Pattern TYPE_REF_CONTEXT_PATTERN = Pattern.compile("\\[\\s*(\\w+)\\s+$");
-
-    private static final Set<String> PRIMITIVE_TYPES = new HashSet<>(Arrays.asList(
-            "bit", "byte", "int", "uint", "vint", "vuint",
-            "float", "ufloat", "string", "vstring",
-            "time", "date", "dateTime"
-    ));
-
-    private static final Set<String> FIELD_TYPES_WITH_TYPE_REF = new HashSet<>(Arrays.asList(
-            "abstract", "array", "assert", "const", "discriminator",
-            "enum", "implicit", "manualArray", "manual", "optional",
-            "peek", "simple", "virtual"
-    ));
-
     @Override
     public PsiElement @Nullable [] getGotoDeclarationTargets(@Nullable PsiElement sourceElement,
                                                               int offset,
@@ -55,46 +41,61 @@ public class MSpecGotoDeclarationHandler implements GotoDeclarationHandler {
             return null;
         }
 
-        if (!IDENTIFIER_PATTERN.matcher(text).matches()) {
+        if (!MSpecFileModel.isIdentifier(text)) {
             return null;
         }
 
-        if (PRIMITIVE_TYPES.contains(text)) {
+        int start = sourceElement.getTextRange().getStartOffset();
+        MSpecFileModel.Role role = MSpecFileModel.getInstance(file).getRole(start);
+        if (role == MSpecFileModel.Role.EXPRESSION || role == MSpecFileModel.Role.FIELD_REFERENCE) {
+            return getFieldReferenceTargets(file, text, start);
+        }
+
+        if (MSpecFileModel.PRIMITIVE_TYPES.contains(text)) {
             return null;
         }
 
-        if (!isTypeReference(sourceElement)) {
+        // Only type references, not definitions or field names
+        if (role != MSpecFileModel.Role.TYPE_REFERENCE) {
             return null;
         }
 
-        MSpecTypeIndex.TypeLocation location = MSpecTypeIndex.findTypeDefinition(file, text);
-        if (location == null) {
+        // Names that are not in the (shared, cached) type table of the package resolve to nothing
+        if (!MSpecTypeIndex.getTypesInScope(file).contains(text)) {
             return null;
         }
-        PsiElement target = location.file.findElementAt(location.offset);
-        return target != null ? new PsiElement[]{target} : null;
+
+        return getTargets(MSpecTypeIndex.findTypeDefinition(file, text));
     }
 
     /**
-     * Checks if the element appears to be a type reference (not a definition or field name).
+     * Resolves a name in a tick expression or typeSwitch discriminator: a parameter or field of the
+     * enclosing type, or after a qualifier (as length in 'header.length') one of the qualifying type.
+     * A type name, like MessageType in 'MessageType.REQUEST', goes to the type.
      */
-    private boolean isTypeReference(PsiElement element) {
-        PsiFile file = element.getContainingFile();
-        if (file == null) {
-            return false;
+    private PsiElement[] getFieldReferenceTargets(PsiFile file, String text, int offset) {
+        List<String> qualifier = MSpecFieldTable.getQualifier(file.getViewProvider().getContents(), offset);
+        if (qualifier == null) {
+            return null;
         }
-
-        int offset = element.getTextRange().getStartOffset();
-        String fileText = file.getText();
-
-        int contextStart = Math.max(0, offset - 100);
-        String beforeContext = fileText.substring(contextStart, offset);
-
-        Matcher typeRefPattern = TYPE_REF_CONTEXT_PATTERN.matcher(beforeContext);
-        if (typeRefPattern.find()) {
-            return FIELD_TYPES_WITH_TYPE_REF.contains(typeRefPattern.group(1));
+        MSpecFieldTable table = MSpecFieldTable.resolveQualifier(file, offset, qualifier);
+        int index = table != null ? table.indexOf(text) : -1;
+        if (index >= 0) {
+            return getTargets(table.getLocation(index));
         }
+        if (qualifier.isEmpty() && MSpecTypeIndex.getTypesInScope(file).contains(text)) {
+            return getTargets(MSpecTypeIndex.findTypeDefinition(file, text));
+        }
+        return null;
+    }
 
-        return false;
+    private PsiElement[] getTargets(MSpecTypeIndex.TypeLocation location) {
+        if (location == null) {
+            return null;
+        }
+        // The PSI of the target file is only created here, for the navigation itself
+        PsiFile targetFile = location.getPsiFile();
+        PsiElement target = targetFile != null ? targetFile.findElementAt(location.offset) : null;
+        return target != null ? new PsiElement[]{target} : null;
     }
 }
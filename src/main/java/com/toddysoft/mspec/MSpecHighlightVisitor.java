@@ -0,0 +1,104 @@
+package com.toddysoft.mspec;
+
+import com.intellij.codeInsight.daemon.impl.HighlightInfo;
+import com.intellij.codeInsight.daemon.impl.HighlightInfoType;
+import com.intellij.codeInsight.daemon.impl.HighlightVisitor;
+import com.intellij.codeInsight.daemon.impl.analysis.HighlightInfoHolder;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import com.toddysoft.mspec.psi.MSpecFile;
+import com.toddysoft.mspec.util.MSpecFileModel;
+import com.toddysoft.mspec.util.MSpecTypeIndex;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Set;
+
+/**
+ * Highlights the type references of an MSpec file: an error for a type that is not defined in the
+ * file or a related file, and {@link MSpecSyntaxHighlighter#EXTERNAL_TYPE_REFERENCE} for a type
+ * defined in another file.
+ * <p>
+ * The file model and the type tables are looked up once per pass in {@link #analyze}, not once per
+ * identifier. The infos only carry a {@link com.intellij.openapi.editor.colors.TextAttributesKey},
+ * which the editor resolves against its current colour scheme, so switching schemes needs no
+ * rehighlighting.
+ * <p>
+ * The types in scope are not computed on the highlighting thread when the table of the package is
+ * out of date (see {@link MSpecTypeIndex#getTypesInScopeIfReady}). Until they are ready, type
+ * references are checked against the types in scope as last computed, or not at all the first time
+ * a file is seen, rather than flagged as undefined.
+ */
+public class MSpecHighlightVisitor implements HighlightVisitor {
+
+    // Only set while a pass runs
+    private HighlightInfoHolder holder;
+    private MSpecFileModel model;
+    private Set<String> localTypes;
+    // Null while the types in scope are computed in the background
+    private Set<String> typesInScope;
+
+    @Override
+    public boolean suitableForFile(@NotNull PsiFile file) {
+        return file instanceof MSpecFile;
+    }
+
+    @Override
+    public boolean analyze(@NotNull PsiFile file, boolean updateWholeFile,
+                           @NotNull HighlightInfoHolder holder, @NotNull Runnable action) {
+        this.holder = holder;
+        this.model = MSpecFileModel.getInstance(file);
+        this.localTypes = MSpecTypeIndex.getTypeDefinitionsInText(file);
+        this.typesInScope = MSpecTypeIndex.getTypesInScopeIfReady(file);
+        try {
+            action.run();
+        } finally {
+            this.holder = null;
+            this.model = null;
+            this.localTypes = null;
+            this.typesInScope = null;
+        }
+        return true;
+    }
+
+    @Override
+    public void visit(@NotNull PsiElement element) {
+        if (typesInScope == null || element.getFirstChild() != null) {
+            return;
+        }
+        IElementType type = element.getNode().getElementType();
+        if (type != MSpecTokenTypes.IDENTIFIER && !MSpecTokenSets.KEYWORDS.contains(type)) {
+            return;
+        }
+        // [fieldType typeReference ... for the field types that take a type reference
+        // (not typeSwitch, state, checksum, padding, reserved, ...), e.g. [simple Huiiii test]
+        if (model.getRole(element.getTextRange().getStartOffset()) != MSpecFileModel.Role.TYPE_REFERENCE) {
+            return;
+        }
+        String text = element.getText();
+        // Only lowercase variants are primitive types
+        if (MSpecFileModel.PRIMITIVE_TYPES.contains(text)) {
+            return;
+        }
+
+        if (!typesInScope.contains(text)) {
+            // Type not found anywhere - error
+            holder.add(HighlightInfo.newHighlightInfo(HighlightInfoType.ERROR)
+                    .range(element)
+                    .descriptionAndTooltip("Undefined type '" + text + "'. Type must be defined with [type "
+                            + text + "], [enum " + text + "], or similar.")
+                    .create());
+        } else if (!localTypes.contains(text)) {
+            // Type is external - mark it as coming from another file
+            holder.add(HighlightInfo.newHighlightInfo(HighlightInfoType.INFORMATION)
+                    .range(element)
+                    .textAttributes(MSpecSyntaxHighlighter.EXTERNAL_TYPE_REFERENCE)
+                    .create());
+        }
+    }
+
+    @Override
+    public @NotNull HighlightVisitor clone() {
+        return new MSpecHighlightVisitor();
+    }
+}
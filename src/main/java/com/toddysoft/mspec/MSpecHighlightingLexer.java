@@ -0,0 +1,390 @@
+package com.toddysoft.mspec;
+
+import com.toddysoft.mspec.parser.MSpecLexer;
+
+/**
+ * Hand-written, table-driven lexer for syntax highlighting.
+ * <p>
+ * Recognizes exactly the tokens of the lexer rules in {@code MSpec.g4}, including ANTLR's
+ * longest-match and rule-order tie breaking, and reports them as the same ANTLR token types, so
+ * {@link MSpecLexerBase} produces the same element types and states as for {@link MSpecLexerAdapter}.
+ * It only works on the buffer with primitive lookup tables built once per class: char flags, single-
+ * and double-char operator types, and a keyword DFA. No ANTLR objects are created; the token type
+ * constants of {@link MSpecLexer} are compile-time constants.
+ */
+public class MSpecHighlightingLexer extends MSpecLexerBase {
+
+    // Char flags, for ASCII chars only; everything else is an ERROR_CHAR
+    private static final int IDENTIFIER_CHAR = 1; // [A-Za-z0-9_-], IDENTIFIER_LITERAL
+    private static final int DIGIT = 2;           // [0-9], INTEGER_CHARACTER
+    private static final int HEX_DIGIT = 4;       // [0-9a-fA-F], HEX_CHARACTER
+    private static final int BLANK = 8;           // [ \t\f], WS
+    private static final int[] CHAR_FLAGS = new int[128];
+
+    // Token type of the one-char token starting with the char, 0 if there is none
+    private static final int[] SINGLE_CHAR_TYPES = new int[128];
+    // Token type of the two-char operator, indexed by first and second char; null if there is none
+    private static final int[][] DOUBLE_CHAR_TYPES = new int[128][];
+
+    // Keyword DFA over letters. State 0 is the start state and never the target of a transition,
+    // so a transition to 0 means "no keyword has this prefix".
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final int[] LETTER_INDEX = new int[128];
+    private static final int[] KEYWORD_TRANSITIONS;
+    private static final int[] KEYWORD_ACCEPT;
+
+    private static final String[] KEYWORDS = {
+        "constants", "globals", "context", "type", "discriminatedType", "dataIo", "enum", "batchSet",
+        "abstract", "array", "assert", "checksum", "const", "discriminator", "implicit", "manualArray",
+        "manual", "optional", "padding", "peek", "reserved", "simple", "state", "typeSwitch", "unknown",
+        "validation", "virtual",
+        "bit", "byte", "int", "vint", "uint", "vuint", "float", "ufloat", "string", "vstring", "time",
+        "date", "dateTime",
+        "shouldFail", "count", "length", "terminated", "true", "false"
+    };
+
+    private static final int[] KEYWORD_TYPES = {
+        MSpecLexer.CONSTANTS, MSpecLexer.GLOBALS, MSpecLexer.CONTEXT, MSpecLexer.TYPE,
+        MSpecLexer.DISCRIMINATEDTYPE, MSpecLexer.DATAIO, MSpecLexer.ENUM, MSpecLexer.BATCHSET,
+        MSpecLexer.ABSTRACT, MSpecLexer.ARRAY, MSpecLexer.ASSERT, MSpecLexer.CHECKSUM, MSpecLexer.CONST,
+        MSpecLexer.DISCRIMINATOR, MSpecLexer.IMPLICIT, MSpecLexer.MANUALARRAY,
+        MSpecLexer.MANUAL, MSpecLexer.OPTIONAL, MSpecLexer.PADDING, MSpecLexer.PEEK, MSpecLexer.RESERVED,
+        MSpecLexer.SIMPLE, MSpecLexer.STATE, MSpecLexer.TYPESWITCH, MSpecLexer.UNKNOWN,
+        MSpecLexer.VALIDATION, MSpecLexer.VIRTUAL,
+        MSpecLexer.BIT, MSpecLexer.BYTE, MSpecLexer.INT, MSpecLexer.VINT, MSpecLexer.UINT, MSpecLexer.VUINT,
+        MSpecLexer.FLOAT, MSpecLexer.UFLOAT, MSpecLexer.STRING, MSpecLexer.VSTRING, MSpecLexer.TIME,
+        MSpecLexer.DATE, MSpecLexer.DATETIME,
+        MSpecLexer.SHOULD_FAIL, MSpecLexer.ARRAY_LOOP_TYPE, MSpecLexer.ARRAY_LOOP_TYPE,
+        MSpecLexer.ARRAY_LOOP_TYPE, MSpecLexer.BOOLEAN_LITERAL, MSpecLexer.BOOLEAN_LITERAL
+    };
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHAR_FLAGS[c] |= IDENTIFIER_CHAR;
+            CHAR_FLAGS[Character.toUpperCase(c)] |= IDENTIFIER_CHAR;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CHAR_FLAGS[c] |= IDENTIFIER_CHAR | DIGIT | HEX_DIGIT;
+        }
+        for (char c = 'a'; c <= 'f'; c++) {
+            CHAR_FLAGS[c] |= HEX_DIGIT;
+            CHAR_FLAGS[Character.toUpperCase(c)] |= HEX_DIGIT;
+        }
+        CHAR_FLAGS['_'] |= IDENTIFIER_CHAR;
+        CHAR_FLAGS['-'] |= IDENTIFIER_CHAR;
+        CHAR_FLAGS[' '] |= BLANK;
+        CHAR_FLAGS['\t'] |= BLANK;
+        CHAR_FLAGS['\f'] |= BLANK;
+
+        // The implicit tokens T__0 - T__23, in the order ANTLR numbered them
+        SINGLE_CHAR_TYPES['='] = MSpecLexer.T__0;
+        SINGLE_CHAR_TYPES[','] = MSpecLexer.T__1;
+        SINGLE_CHAR_TYPES['.'] = MSpecLexer.T__2;
+        SINGLE_CHAR_TYPES['?'] = MSpecLexer.T__3;
+        SINGLE_CHAR_TYPES[':'] = MSpecLexer.T__4;
+        SINGLE_CHAR_TYPES['"'] = MSpecLexer.T__5;
+        SINGLE_CHAR_TYPES['!'] = MSpecLexer.T__6;
+        SINGLE_CHAR_TYPES['+'] = MSpecLexer.T__7;
+        SINGLE_CHAR_TYPES['-'] = MSpecLexer.T__8;
+        SINGLE_CHAR_TYPES['/'] = MSpecLexer.T__9;
+        SINGLE_CHAR_TYPES['^'] = MSpecLexer.T__10;
+        SINGLE_CHAR_TYPES['>'] = MSpecLexer.T__15;
+        SINGLE_CHAR_TYPES['<'] = MSpecLexer.T__16;
+        SINGLE_CHAR_TYPES['&'] = MSpecLexer.T__21;
+        SINGLE_CHAR_TYPES['|'] = MSpecLexer.T__22;
+        SINGLE_CHAR_TYPES['%'] = MSpecLexer.T__23;
+        doubleCharType('=', '=', MSpecLexer.T__11);
+        doubleCharType('!', '=', MSpecLexer.T__12);
+        doubleCharType('>', '>', MSpecLexer.T__13);
+        doubleCharType('<', '<', MSpecLexer.T__14);
+        doubleCharType('>', '=', MSpecLexer.T__17);
+        doubleCharType('<', '=', MSpecLexer.T__18);
+        doubleCharType('&', '&', MSpecLexer.T__19);
+        doubleCharType('|', '|', MSpecLexer.T__20);
+
+        SINGLE_CHAR_TYPES['\''] = MSpecLexer.TICK;
+        SINGLE_CHAR_TYPES['['] = MSpecLexer.LBRACKET;
+        SINGLE_CHAR_TYPES[']'] = MSpecLexer.RBRACKET;
+        SINGLE_CHAR_TYPES['('] = MSpecLexer.LRBRACKET;
+        SINGLE_CHAR_TYPES[')'] = MSpecLexer.RRBRACKET;
+        SINGLE_CHAR_TYPES['{'] = MSpecLexer.LCBRACKET;
+        SINGLE_CHAR_TYPES['}'] = MSpecLexer.RCBRACKET;
+        SINGLE_CHAR_TYPES['*'] = MSpecLexer.ASTERISK;
+
+        java.util.Arrays.fill(LETTER_INDEX, -1);
+        for (int i = 0; i < LETTERS.length(); i++) {
+            LETTER_INDEX[LETTERS.charAt(i)] = i;
+        }
+        int maxStates = 1;
+        for (String keyword : KEYWORDS) {
+            maxStates += keyword.length();
+        }
+        int[] transitions = new int[maxStates * LETTERS.length()];
+        int[] accept = new int[maxStates];
+        int states = 1;
+        for (int k = 0; k < KEYWORDS.length; k++) {
+            int state = 0;
+            for (char c : KEYWORDS[k].toCharArray()) {
+                int index = state * LETTERS.length() + LETTER_INDEX[c];
+                if (transitions[index] == 0) {
+                    transitions[index] = states++;
+                }
+                state = transitions[index];
+            }
+            accept[state] = KEYWORD_TYPES[k];
+        }
+        KEYWORD_TRANSITIONS = java.util.Arrays.copyOf(transitions, states * LETTERS.length());
+        KEYWORD_ACCEPT = java.util.Arrays.copyOf(accept, states);
+    }
+
+    private static void doubleCharType(char first, char second, int type) {
+        if (DOUBLE_CHAR_TYPES[first] == null) {
+            DOUBLE_CHAR_TYPES[first] = new int[128];
+        }
+        DOUBLE_CHAR_TYPES[first][second] = type;
+    }
+
+    @Override
+    protected void startScanner() {
+        tokenEnd = startOffset;
+    }
+
+    @Override
+    protected void readToken() {
+        int pos = tokenEnd;
+        tokenStart = pos;
+        if (pos >= endOffset) {
+            tokenType = EOF;
+            return;
+        }
+
+        char c = buffer.charAt(pos);
+        if (c >= 128) {
+            tokenType = MSpecLexer.ERROR_CHAR;
+            tokenEnd = pos + 1;
+            return;
+        }
+
+        int flags = CHAR_FLAGS[c];
+        if ((flags & DIGIT) != 0) {
+            scanNumber(pos);
+        } else if ((flags & IDENTIFIER_CHAR) != 0) {
+            scanWord(pos, c);
+        } else if ((flags & BLANK) != 0) {
+            scanBlank(pos);
+        } else if (c == '\n' || c == '\r') {
+            scanNewline(pos, c);
+        } else if (c == '/') {
+            scanSlash(pos);
+        } else if (c == '"') {
+            scanString(pos);
+        } else {
+            scanOperator(pos, c);
+        }
+    }
+
+    /**
+     * Keywords, identifiers, and the '-' operator. IDENTIFIER_LITERAL matches the whole run, so a
+     * keyword only wins (by rule order) if it is the entire run.
+     */
+    private void scanWord(int pos, char c) {
+        int end = runEnd(pos, IDENTIFIER_CHAR);
+        tokenEnd = end;
+        if (c == '-' && end == pos + 1) {
+            tokenType = MSpecLexer.T__8;
+        } else if (c == '-' || c == '_') {
+            tokenType = MSpecLexer.IDENTIFIER_LITERAL;
+        } else {
+            tokenType = keywordType(pos, end);
+        }
+    }
+
+    private int keywordType(int start, int end) {
+        int state = 0;
+        for (int i = start; i < end; i++) {
+            int letter = LETTER_INDEX[buffer.charAt(i)];
+            if (letter < 0) {
+                return MSpecLexer.IDENTIFIER_LITERAL;
+            }
+            state = KEYWORD_TRANSITIONS[state * LETTERS.length() + letter];
+            if (state == 0) {
+                return MSpecLexer.IDENTIFIER_LITERAL;
+            }
+        }
+        int type = KEYWORD_ACCEPT[state];
+        return type != 0 ? type : MSpecLexer.IDENTIFIER_LITERAL;
+    }
+
+    /**
+     * A token starting with a digit can be INTEGER_LITERAL, FLOAT_LITERAL, HEX_LITERAL or
+     * IDENTIFIER_LITERAL. The longest wins, ties go to the earlier rule in that order.
+     * <p>
+     * FLOAT_LITERAL is {@code INTEGER_LITERAL.INTEGER_LITERAL}, where the '.' is ANTLR's wildcard:
+     * a digit run, any one char, and another digit run. Its longest match therefore uses the first
+     * char after the leading digits as the wildcard if digits follow it, and otherwise a digit inside
+     * a run of at least three.
+     */
+    private void scanNumber(int pos) {
+        int digitsEnd = runEnd(pos, DIGIT);
+        int end = digitsEnd;
+        int type = MSpecLexer.INTEGER_LITERAL;
+
+        int floatEnd = -1;
+        if (digitsEnd + 1 < endOffset && hasFlag(buffer.charAt(digitsEnd + 1), DIGIT)) {
+            floatEnd = runEnd(digitsEnd + 1, DIGIT);
+        } else if (digitsEnd - pos >= 3) {
+            floatEnd = digitsEnd;
+        }
+        if (floatEnd > end) {
+            end = floatEnd;
+            type = MSpecLexer.FLOAT_LITERAL;
+        }
+
+        if (buffer.charAt(pos) == '0' && pos + 2 < endOffset
+                && (buffer.charAt(pos + 1) == 'x' || buffer.charAt(pos + 1) == 'X')
+                && hasFlag(buffer.charAt(pos + 2), HEX_DIGIT)) {
+            int hexEnd = runEnd(pos + 2, HEX_DIGIT);
+            if (hexEnd > end) {
+                end = hexEnd;
+                type = MSpecLexer.HEX_LITERAL;
+            }
+        }
+
+        int identifierEnd = runEnd(pos, IDENTIFIER_CHAR);
+        if (identifierEnd > end) {
+            end = identifierEnd;
+            type = MSpecLexer.IDENTIFIER_LITERAL;
+        }
+
+        tokenEnd = end;
+        tokenType = type;
+    }
+
+    /**
+     * At the start of a line, blanks followed by a line break are one EmptyLine token, which is
+     * always longer than the WS alternative. Otherwise it is WS.
+     */
+    private void scanBlank(int pos) {
+        if (isLineStart(pos)) {
+            int end = pos;
+            while (end < endOffset && (buffer.charAt(end) == ' ' || buffer.charAt(end) == '\t')) {
+                end++;
+            }
+            int lineBreakEnd = lineBreakEnd(end);
+            if (lineBreakEnd > 0) {
+                tokenEnd = lineBreakEnd;
+                tokenType = MSpecLexer.EmptyLine;
+                return;
+            }
+        }
+        tokenEnd = runEnd(pos, BLANK);
+        tokenType = MSpecLexer.WS;
+    }
+
+    private void scanNewline(int pos, char c) {
+        int end = lineBreakEnd(pos);
+        if (end < 0) {
+            // A lone '\r' is not matched by any rule but the catch-all
+            tokenEnd = pos + 1;
+            tokenType = MSpecLexer.ERROR_CHAR;
+            return;
+        }
+        tokenEnd = end;
+        tokenType = isLineStart(pos) ? MSpecLexer.EmptyLine : MSpecLexer.NEWLINE;
+    }
+
+    /**
+     * Comments, or the '/' operator. An unterminated block comment is no BLOCK_COMMENT at all, so
+     * it falls back to '/' like in ANTLR.
+     */
+    private void scanSlash(int pos) {
+        if (pos + 1 < endOffset) {
+            char next = buffer.charAt(pos + 1);
+            if (next == '/') {
+                int end = pos + 2;
+                while (end < endOffset && buffer.charAt(end) != '\r' && buffer.charAt(end) != '\n') {
+                    end++;
+                }
+                tokenEnd = end;
+                tokenType = MSpecLexer.LINE_COMMENT;
+                return;
+            }
+            if (next == '*') {
+                for (int i = pos + 2; i + 1 < endOffset; i++) {
+                    if (buffer.charAt(i) == '*' && buffer.charAt(i + 1) == '/') {
+                        tokenEnd = i + 2;
+                        tokenType = MSpecLexer.BLOCK_COMMENT;
+                        return;
+                    }
+                }
+            }
+        }
+        tokenEnd = pos + 1;
+        tokenType = MSpecLexer.T__9;
+    }
+
+    /**
+     * A string literal may not contain '"', '\', or line breaks. Without a closing quote it is the
+     * '"' operator.
+     */
+    private void scanString(int pos) {
+        int end = pos + 1;
+        while (end < endOffset) {
+            char c = buffer.charAt(end);
+            if (c == '"' || c == '\\' || c == '\r' || c == '\n') {
+                break;
+            }
+            end++;
+        }
+        if (end < endOffset && buffer.charAt(end) == '"') {
+            tokenEnd = end + 1;
+            tokenType = MSpecLexer.STRING_LITERAL;
+        } else {
+            tokenEnd = pos + 1;
+            tokenType = MSpecLexer.T__5;
+        }
+    }
+
+    private void scanOperator(int pos, char c) {
+        int[] doubleCharTypes = DOUBLE_CHAR_TYPES[c];
+        if (doubleCharTypes != null && pos + 1 < endOffset) {
+            char next = buffer.charAt(pos + 1);
+            if (next < 128 && doubleCharTypes[next] != 0) {
+                tokenEnd = pos + 2;
+                tokenType = doubleCharTypes[next];
+                return;
+            }
+        }
+        int type = SINGLE_CHAR_TYPES[c];
+        tokenEnd = pos + 1;
+        tokenType = type != 0 ? type : MSpecLexer.ERROR_CHAR;
+    }
+
+    /**
+     * End of a "\n" or "\r\n" starting at pos, or -1 if there is none.
+     */
+    private int lineBreakEnd(int pos) {
+        if (pos < endOffset && buffer.charAt(pos) == '\n') {
+            return pos + 1;
+        }
+        if (pos + 1 < endOffset && buffer.charAt(pos) == '\r' && buffer.charAt(pos + 1) == '\n') {
+            return pos + 2;
+        }
+        return -1;
+    }
+
+    private boolean isLineStart(int pos) {
+        return pos == 0 || buffer.charAt(pos - 1) == '\n';
+    }
+
+    private int runEnd(int pos, int flag) {
+        while (pos < endOffset && hasFlag(buffer.charAt(pos), flag)) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean hasFlag(char c, int flag) {
+        return c < 128 && (CHAR_FLAGS[c] & flag) != 0;
+    }
+}
@@ -1,84 +1,85 @@
 package com.toddysoft.mspec;
 
-import com.intellij.lexer.LexerBase;
-import com.intellij.psi.tree.IElementType;
 import com.toddysoft.mspec.parser.MSpecLexer;
-import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.Token;
-import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
-
-import java.util.List;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
 
 /**
  * Adapter between IntelliJ Lexer interface and ANTLR lexer.
+ * <p>
+ * Tokens are pulled from the ANTLR lexer one at a time as the adapter advances, so a restart only
+ * lexes as far as the caller actually reads. Lexer states are tracked by {@link MSpecLexerBase}.
+ * <p>
+ * The ANTLR lexer reads the buffer in place through {@link MSpecCharStream} and is reused across
+ * restarts. Its tokens all come from {@link ReusingTokenFactory}, so lexing allocates nothing per
+ * token: the adapter copies type and offsets out of the single token before pulling the next one.
  */
-public class MSpecLexerAdapter extends LexerBase {
+public class MSpecLexerAdapter extends MSpecLexerBase {
+    private final ReusingTokenFactory tokenFactory = new ReusingTokenFactory();
     private MSpecLexer lexer;
-    private List<? extends Token> tokens;
-    private int currentTokenIndex;
-    private CharSequence buffer;
-    private int startOffset;
-    private int endOffset;
-
-    @Override
-    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
-        this.buffer = buffer;
-        this.startOffset = startOffset;
-        this.endOffset = endOffset;
-
-        String text = buffer.subSequence(startOffset, endOffset).toString();
-        lexer = new MSpecLexer(CharStreams.fromString(text));
-        tokens = lexer.getAllTokens();
-        currentTokenIndex = 0;
-    }
 
     @Override
-    public int getState() {
-        return 0;
-    }
-
-    @Nullable
-    @Override
-    public IElementType getTokenType() {
-        if (currentTokenIndex >= tokens.size()) {
-            return null;
+    protected void startScanner() {
+        MSpecCharStream input = new MSpecCharStream(buffer, startOffset, endOffset);
+        if (lexer == null) {
+            lexer = new MSpecLexer(input);
+            lexer.setTokenFactory(tokenFactory);
+        } else {
+            lexer.setInputStream(input);
         }
-        Token token = tokens.get(currentTokenIndex);
-        return MSpecTokenTypes.getTokenType(token.getType());
+        // EmptyLine is only recognized at the start of a line, so a restart in the middle of a line
+        // must not pretend to be at column 0.
+        lexer.setCharPositionInLine(columnOf(buffer, startOffset));
     }
 
     @Override
-    public int getTokenStart() {
-        if (currentTokenIndex >= tokens.size()) {
-            return endOffset;
+    protected void readToken() {
+        Token token = lexer.nextToken();
+        tokenType = token.getType();
+        if (tokenType == EOF) {
+            tokenStart = endOffset;
+            tokenEnd = endOffset;
+            return;
         }
-        return startOffset + tokens.get(currentTokenIndex).getStartIndex();
+        tokenStart = token.getStartIndex();
+        tokenEnd = token.getStopIndex() + 1;
     }
 
-    @Override
-    public int getTokenEnd() {
-        if (currentTokenIndex >= tokens.size()) {
-            return endOffset;
+    private static int columnOf(CharSequence buffer, int offset) {
+        int lineStart = offset;
+        while (lineStart > 0 && buffer.charAt(lineStart - 1) != '\n') {
+            lineStart--;
         }
-        return startOffset + tokens.get(currentTokenIndex).getStopIndex() + 1;
+        return offset - lineStart;
     }
 
-    @Override
-    public void advance() {
-        if (currentTokenIndex < tokens.size()) {
-            currentTokenIndex++;
-        }
-    }
+    /**
+     * Hands out the same token for every call. Only type and offsets are ever read from it, and
+     * always before the lexer is asked for the next one.
+     */
+    private static final class ReusingTokenFactory implements TokenFactory<CommonToken> {
+        private final CommonToken token = new CommonToken(Token.INVALID_TYPE);
 
-    @NotNull
-    @Override
-    public CharSequence getBufferSequence() {
-        return buffer;
-    }
+        @Override
+        public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel,
+                                  int start, int stop, int line, int charPositionInLine) {
+            token.setType(type);
+            token.setChannel(channel);
+            token.setStartIndex(start);
+            token.setStopIndex(stop);
+            token.setLine(line);
+            token.setCharPositionInLine(charPositionInLine);
+            return token;
+        }
 
-    @Override
-    public int getBufferEnd() {
-        return endOffset;
+        @Override
+        public CommonToken create(int type, String text) {
+            token.setType(type);
+            return token;
+        }
     }
 }
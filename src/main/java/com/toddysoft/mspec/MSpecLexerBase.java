@@ -0,0 +1,175 @@
+package com.toddysoft.mspec;
+
+import com.intellij.lexer.LexerBase;
+import com.intellij.psi.tree.IElementType;
+import com.toddysoft.mspec.parser.MSpecLexer;
+import org.antlr.v4.runtime.Token;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Common base of the MSpec lexers.
+ * <p>
+ * Subclasses only recognize tokens, reported as the ANTLR token types of {@link MSpecLexer}. This
+ * class maps them to {@link IElementType}s and tracks the lexer state, so both lexers produce the
+ * same token stream and the same states. Every token reports the state it starts in:
+ * <ul>
+ *   <li>{@link #STATE_DEFAULT} - outside any tick-quoted expression. Restarting here is always safe.</li>
+ *   <li>{@link #STATE_EXPRESSION} - inside {@code '...'}. Keywords are plain identifiers in here
+ *       ({@code idExpression} explicitly allows them), so a restart has to know about the opening tick.</li>
+ * </ul>
+ * Block comments and string literals are always emitted as a single token, so a restart can never
+ * land inside one and they need no state of their own.
+ * <p>
+ * The bits above {@link #STATE_EXPRESSION} track the header of an array field,
+ * {@code [array <type> <name> <loopType> ...}, so {@code count}, {@code length} and {@code terminated}
+ * come out as {@link MSpecTokenTypes#ARRAY_LOOP_TYPE} in loop type position and as identifiers
+ * everywhere else. Only the tokens of a field header carry these bits; every other token starts in
+ * one of the two states above.
+ */
+public abstract class MSpecLexerBase extends LexerBase {
+    public static final int STATE_DEFAULT = 0;
+    public static final int STATE_EXPRESSION = 1;
+
+    // Array header phases, stored in the state bits above STATE_EXPRESSION
+    private static final int PHASE_SHIFT = 1;
+    private static final int PHASE_NONE = 0;
+    private static final int PHASE_FIELD_KEYWORD = 1; // after '[' - is it an array field?
+    private static final int PHASE_TYPE = 2;          // after '[array' / '[manualArray'
+    private static final int PHASE_SIZE = 3;          // after a sized primitive type
+    private static final int PHASE_NAME = 4;          // after the type (and size)
+    private static final int PHASE_TYPE_ARGS = 5;     // inside the '(...)' of a type reference
+    private static final int PHASE_LOOP_TYPE = 6;     // after the field name
+
+    protected static final int EOF = Token.EOF;
+
+    protected CharSequence buffer;
+    protected int startOffset;
+    protected int endOffset;
+
+    // The current token as set by readToken(), or tokenType == EOF once the range is exhausted
+    protected int tokenType;
+    protected int tokenStart;
+    protected int tokenEnd;
+
+    private int state;
+
+    /**
+     * Prepares the scanner to read tokens from startOffset on.
+     */
+    protected abstract void startScanner();
+
+    /**
+     * Reads the next token into tokenType, tokenStart and tokenEnd.
+     */
+    protected abstract void readToken();
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+        this.buffer = buffer;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.state = initialState;
+
+        startScanner();
+        readToken();
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Nullable
+    @Override
+    public IElementType getTokenType() {
+        if (tokenType == EOF) {
+            return null;
+        }
+        IElementType type = MSpecTokenTypes.getTokenType(tokenType);
+        if ((state & STATE_EXPRESSION) != 0) {
+            if (MSpecTokenSets.KEYWORDS.contains(type) && tokenType != MSpecLexer.BOOLEAN_LITERAL) {
+                return MSpecTokenTypes.IDENTIFIER;
+            }
+        } else if (tokenType == MSpecLexer.ARRAY_LOOP_TYPE && phase() == PHASE_LOOP_TYPE) {
+            return MSpecTokenTypes.ARRAY_LOOP_TYPE;
+        }
+        return type;
+    }
+
+    @Override
+    public int getTokenStart() {
+        return tokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+        return tokenEnd;
+    }
+
+    @Override
+    public void advance() {
+        if (tokenType == EOF) {
+            return;
+        }
+        if (tokenType == MSpecLexer.TICK) {
+            state ^= STATE_EXPRESSION;
+        } else if ((state & STATE_EXPRESSION) == 0 && !isHidden(tokenType)) {
+            state = (nextPhase(phase(), tokenType) << PHASE_SHIFT) | (state & STATE_EXPRESSION);
+        }
+        readToken();
+    }
+
+    private int phase() {
+        return state >>> PHASE_SHIFT;
+    }
+
+    /**
+     * Moves through the header of an array field. Tick-quoted expressions (type arguments, a vstring
+     * length) and hidden tokens never move the phase.
+     */
+    private static int nextPhase(int phase, int tokenType) {
+        if (tokenType == MSpecLexer.LBRACKET) {
+            return PHASE_FIELD_KEYWORD;
+        }
+        if (tokenType == MSpecLexer.RBRACKET) {
+            return PHASE_NONE;
+        }
+        switch (phase) {
+            case PHASE_FIELD_KEYWORD:
+                return tokenType == MSpecLexer.ARRAY || tokenType == MSpecLexer.MANUALARRAY
+                        ? PHASE_TYPE : PHASE_NONE;
+            case PHASE_TYPE:
+                return isSizedType(tokenType) ? PHASE_SIZE : PHASE_NAME;
+            case PHASE_SIZE:
+                return PHASE_NAME;
+            case PHASE_NAME:
+                return tokenType == MSpecLexer.LRBRACKET ? PHASE_TYPE_ARGS : PHASE_LOOP_TYPE;
+            case PHASE_TYPE_ARGS:
+                return tokenType == MSpecLexer.RRBRACKET ? PHASE_NAME : PHASE_TYPE_ARGS;
+            default:
+                return PHASE_NONE;
+        }
+    }
+
+    private static boolean isSizedType(int tokenType) {
+        return tokenType == MSpecLexer.INT || tokenType == MSpecLexer.UINT || tokenType == MSpecLexer.FLOAT
+                || tokenType == MSpecLexer.UFLOAT || tokenType == MSpecLexer.STRING;
+    }
+
+    private static boolean isHidden(int tokenType) {
+        return tokenType == MSpecLexer.WS || tokenType == MSpecLexer.NEWLINE || tokenType == MSpecLexer.EmptyLine
+                || tokenType == MSpecLexer.LINE_COMMENT || tokenType == MSpecLexer.BLOCK_COMMENT;
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+        return buffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+        return endOffset;
+    }
+}
@@ -8,27 +8,618 @@ import org.jetbrains.annotations.NotNull;
 
 /**
  * Parser implementation for MSpec language.
- *
- * Note: This is a simplified parser that creates a flat PSI tree.
- * For this language, a flat tree with text-based validation in the annotator
- * is sufficient and more maintainable than trying to force ANTLR integration.
- *
- * Future improvement: Consider using Grammar-Kit (https://github.com/JetBrains/Grammar-Kit)
- * instead of ANTLR for proper IntelliJ PSI integration if hierarchical tree is needed.
+ * <p>
+ * A recursive-descent parser following the rules of {@code MSpec.g4}. It builds the element types of
+ * {@link MSpecTypes}:
+ * <pre>
+ * COMPLEX_TYPE_DEFINITION          [type Foo ... ]
+ *   TYPE_DEFINITION                type Foo ...  (or DISCRIMINATED_TYPE_, ENUM_, DATAIO_DEFINITION)
+ *     ID_EXPRESSION                Foo
+ *     ARGUMENT_LIST, ATTRIBUTE_LIST
+ *     FIELD_DEFINITION             [simple uint 8 foo]
+ *       SIMPLE_FIELD               simple uint 8 foo  (or any other *_FIELD)
+ *         TYPE_REFERENCE           DATA_TYPE or COMPLEX_TYPE_REFERENCE
+ *         ID_EXPRESSION            foo
+ *       ATTRIBUTE_LIST
+ *     BATCH_SET_DEFINITION, ENUM_VALUE_DEFINITION, CASE_STATEMENT ...
+ * </pre>
+ * The top-level type blocks are {@link MSpecComplexTypeDefinitionElementType lazy}: parsing the file
+ * only finds where each block ends and collapses it, and the block is parsed on its own, with the
+ * block type as root, when its children are first needed.
+ * <p>
+ * Tick-quoted expressions become a single EXPRESSION node; the identifiers inside it are wrapped in
+ * ID_EXPRESSION nodes but the expression itself is not parsed any further.
+ * <p>
+ * Brackets are matched leniently: an unexpected token is reported and skipped up to the closing
+ * {@code ]}, and a {@code [} where a {@code ]} is expected closes the current construct, so a field
+ * that is still being typed doesn't swallow the fields after it. A missing size of a sized data type
+ * is not a parse error, {@link MSpecAnnotator} reports it with a better message.
  */
 public class MSpecParser implements PsiParser {
     @NotNull
     @Override
     public ASTNode parse(@NotNull IElementType root, @NotNull PsiBuilder builder) {
         PsiBuilder.Marker rootMarker = builder.mark();
-
-        // Simple parse: consume all tokens
-        // The annotator handles validation using text-based analysis
-        while (!builder.eof()) {
-            builder.advanceLexer();
+        if (root == MSpecTypes.COMPLEX_TYPE_DEFINITION) {
+            parseComplexTypeDefinition(builder);
+        } else {
+            parseFile(builder);
         }
-
         rootMarker.done(root);
         return builder.getTreeBuilt();
     }
+
+    // file : contantsDefinition? globalsDefinition? contextDefintion? complexTypeDefinition* EOF
+    private static void parseFile(PsiBuilder b) {
+        while (!b.eof()) {
+            if (at(b, "[")) {
+                parseTopLevelDefinition(b);
+            } else {
+                skipWithError(b, "'[' expected");
+            }
+        }
+    }
+
+    private static void parseTopLevelDefinition(PsiBuilder b) {
+        PsiBuilder.Marker m = b.mark();
+        MSpecComplexTypeDefinitionElementType.BlockEndFinder blockEnd =
+                new MSpecComplexTypeDefinitionElementType.BlockEndFinder();
+        blockEnd.next(b.getOriginalText(), b.getCurrentOffset(), b.rawTokenTypeStart(1));
+        b.advanceLexer(); // [
+        IElementType type;
+        if (at(b, "constants")) {
+            type = MSpecTypes.CONSTANTS_DEFINITION;
+            b.advanceLexer();
+            parseBody(b, BodyKind.FIELDS);
+        } else if (at(b, "globals")) {
+            type = MSpecTypes.GLOBALS_DEFINITION;
+            b.advanceLexer();
+            parseBody(b, BodyKind.FIELDS);
+        } else if (at(b, "context")) {
+            type = MSpecTypes.CONTEXT_DEFINITION;
+            b.advanceLexer();
+            parseBody(b, BodyKind.FIELDS);
+        } else {
+            // Everything else is a complex type, parsed lazily
+            while (!b.eof()) {
+                boolean closed = blockEnd.next(b.getOriginalText(), b.getCurrentOffset(), b.rawTokenTypeStart(1));
+                b.advanceLexer();
+                if (closed) {
+                    break;
+                }
+            }
+            m.collapse(MSpecTypes.COMPLEX_TYPE_DEFINITION);
+            return;
+        }
+        closeBracket(b);
+        m.done(type);
+    }
+
+    // complexTypeDefinition : LBRACKET complexType RBRACKET, as the root of a lazily parsed block
+    private static void parseComplexTypeDefinition(PsiBuilder b) {
+        if (at(b, "[")) {
+            b.advanceLexer();
+            parseComplexType(b);
+            closeBracket(b);
+        } else {
+            b.error("'[' expected");
+        }
+        while (!b.eof()) {
+            skipWithError(b, "Unexpected text after the type definition");
+        }
+    }
+
+    // complexType : TYPE | DISCRIMINATEDTYPE | ENUM | DATAIO ...
+    private static void parseComplexType(PsiBuilder b) {
+        PsiBuilder.Marker m = b.mark();
+        if (at(b, "type") || at(b, "discriminatedType")) {
+            IElementType type = at(b, "type") ? MSpecTypes.TYPE_DEFINITION : MSpecTypes.DISCRIMINATED_TYPE_DEFINITION;
+            b.advanceLexer();
+            parseTypeHeader(b);
+            parseBody(b, BodyKind.FIELDS);
+            m.done(type);
+        } else if (at(b, "enum")) {
+            b.advanceLexer();
+            if (b.getTokenType() == MSpecTokenTypes.PRIMITIVE_TYPE) {
+                parseDataType(b);
+            }
+            parseTypeHeader(b);
+            parseBody(b, BodyKind.ENUM_VALUES);
+            m.done(MSpecTypes.ENUM_DEFINITION);
+        } else if (at(b, "dataIo")) {
+            b.advanceLexer();
+            parseTypeHeader(b);
+            if (at(b, "[")) {
+                parseFieldDefinition(b);
+            } else {
+                b.error("'[typeSwitch' expected");
+            }
+            m.done(MSpecTypes.DATAIO_DEFINITION);
+        } else {
+            m.drop();
+            b.error("'type', 'discriminatedType', 'enum' or 'dataIo' expected");
+        }
+    }
+
+    // name=idExpression (LRBRACKET params=argumentList RRBRACKET)? attributes=attributeList
+    private static void parseTypeHeader(PsiBuilder b) {
+        parseIdExpression(b);
+        if (at(b, "(")) {
+            parseArgumentList(b);
+        }
+        parseAttributeList(b);
+    }
+
+    private enum BodyKind { FIELDS, ENUM_VALUES }
+
+    /**
+     * Parses the bracketed children of a definition up to, but not including, its closing bracket.
+     */
+    private static void parseBody(PsiBuilder b, BodyKind kind) {
+        while (!b.eof() && !at(b, "]")) {
+            if (!at(b, "[")) {
+                skipWithError(b, "'[' or ']' expected");
+            } else if (kind == BodyKind.ENUM_VALUES) {
+                parseEnumValueDefinition(b);
+            } else if (lookAheadIs(b, "batchSet")) {
+                parseBatchSetDefinition(b);
+            } else {
+                parseFieldDefinition(b);
+            }
+        }
+    }
+
+    // fieldDefinition : LBRACKET field (attributes=attributeList) RBRACKET
+    private static void parseFieldDefinition(PsiBuilder b) {
+        PsiBuilder.Marker m = b.mark();
+        b.advanceLexer(); // [
+        if (parseField(b)) {
+            parseAttributeList(b);
+            closeBracket(b);
+        } else if (!at(b, "[")) {
+            // The field already reported its error, only skip to the end of it
+            closeBracket(b);
+        }
+        m.done(MSpecTypes.FIELD_DEFINITION);
+    }
+
+    // batchSetDefinition : LBRACKET BATCHSET attributes=attributeList fieldDefinition+ RBRACKET
+    private static void parseBatchSetDefinition(PsiBuilder b) {
+        PsiBuilder.Marker m = b.mark();
+        b.advanceLexer(); // [
+        b.advanceLexer(); // batchSet
+        parseAttributeList(b);
+        parseBody(b, BodyKind.FIELDS);
+        closeBracket(b);
+        m.done(MSpecTypes.BATCH_SET_DEFINITION);
+    }
+
+    // enumValueDefinition : LBRACKET (valueExpression=expression)? name=IDENTIFIER_LITERAL
+    //                       (LBRACKET constantValueExpressions=multipleExpressions RBRACKET)? RBRACKET
+    private static void parseEnumValueDefinition(PsiBuilder b) {
+        PsiBuilder.Marker m = b.mark();
+        b.advanceLexer(); // [
+        if (atExpression(b)) {
+            parseExpression(b);
+        }
+        parseIdExpression(b);
+        if (at(b, "[")) {
+            b.advanceLexer();
+            parseMultipleExpressions(b);
+            closeBracket(b);
+        }
+        closeBracket(b);
+        m.done(MSpecTypes.ENUM_VALUE_DEFINITION);
+    }
+
+    // caseStatement : LBRACKET (discriminatorValues=multipleExpressions)? (nameWildcard=ASTERISK)?
+    //                 name=IDENTIFIER_LITERAL (LRBRACKET params=argumentList RRBRACKET)?
+    //                 (fieldDefinition|batchSetDefinition)* RBRACKET
+    private static void parseCaseStatement(PsiBuilder b) {
+        PsiBuilder.Marker m = b.mark();
+        b.advanceLexer(); // [
+        // A '*' directly in front of the name is the name wildcard, any other one a discriminator value
+        if (at(b, "'") || (at(b, "*") && b.lookAhead(1) != MSpecTokenTypes.IDENTIFIER)) {
+            parseMultipleExpressions(b);
+        }
+        if (at(b, "*")) {
+            b.advanceLexer();
+        }
+        parseIdExpression(b);
+        if (at(b, "(")) {
+            parseArgumentList(b);
+        }
+        parseBody(b, BodyKind.FIELDS);
+        closeBracket(b);
+        m.done(MSpecTypes.CASE_STATEMENT);
+    }
+
+    private static boolean parseField(PsiBuilder b) {
+        if (b.getTokenType() != MSpecTokenTypes.FIELD_KEYWORD && !at(b, "enum")) {
+            b.error("Field type expected");
+            return false;
+        }
+        PsiBuilder.Marker m = b.mark();
+        String keyword = b.getTokenText();
+        b.advanceLexer();
+        IElementType type;
+        boolean parsed;
+        switch (keyword) {
+            case "abstract" -> {
+                type = MSpecTypes.ABSTRACT_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b);
+            }
+            case "array" -> {
+                type = MSpecTypes.ARRAY_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b) && parseLoopType(b) && parseExpression(b);
+            }
+            case "assert" -> {
+                type = MSpecTypes.ASSERT_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b) && parseExpression(b);
+            }
+            case "checksum" -> {
+                type = MSpecTypes.CHECKSUM_FIELD;
+                parsed = parseDataType(b) && parseIdExpression(b) && parseExpression(b);
+            }
+            case "const" -> {
+                type = MSpecTypes.CONST_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b) && parseValueLiteral(b);
+            }
+            case "discriminator" -> {
+                type = MSpecTypes.DISCRIMINATOR_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b);
+            }
+            case "enum" -> {
+                type = MSpecTypes.ENUM_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b) && parseIdExpression(b);
+            }
+            case "implicit" -> {
+                type = MSpecTypes.IMPLICIT_FIELD;
+                parsed = parseDataType(b) && parseIdExpression(b) && parseExpression(b);
+            }
+            case "manualArray" -> {
+                type = MSpecTypes.MANUAL_ARRAY_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b) && parseLoopType(b)
+                        && parseExpression(b) && parseExpression(b) && parseExpression(b) && parseExpression(b);
+            }
+            case "manual" -> {
+                type = MSpecTypes.MANUAL_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b)
+                        && parseExpression(b) && parseExpression(b) && parseExpression(b);
+            }
+            case "optional" -> {
+                type = MSpecTypes.OPTIONAL_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b) && (!atExpression(b) || parseExpression(b));
+            }
+            case "padding" -> {
+                type = MSpecTypes.PADDING_FIELD;
+                parsed = parseDataType(b) && parseIdExpression(b) && parseExpression(b) && parseExpression(b);
+            }
+            case "peek" -> {
+                type = MSpecTypes.PEEK_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b) && (!atExpression(b) || parseExpression(b));
+            }
+            case "reserved" -> {
+                type = MSpecTypes.RESERVED_FIELD;
+                parsed = parseDataType(b) && parseExpression(b);
+            }
+            case "simple" -> {
+                type = MSpecTypes.SIMPLE_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b);
+            }
+            case "state" -> {
+                type = MSpecTypes.STATE_FIELD;
+                parsed = parseIdExpression(b);
+            }
+            case "typeSwitch" -> {
+                type = MSpecTypes.TYPESWITCH_FIELD;
+                parsed = parseMultipleVariableLiterals(b);
+                while (parsed && at(b, "[")) {
+                    parseCaseStatement(b);
+                }
+            }
+            case "unknown" -> {
+                type = MSpecTypes.UNKNOWN_FIELD;
+                parsed = parseDataType(b);
+            }
+            case "validation" -> {
+                type = MSpecTypes.VALIDATION_FIELD;
+                parsed = parseExpression(b);
+                if (parsed && b.getTokenType() == MSpecTokenTypes.STRING) {
+                    b.advanceLexer();
+                }
+                if (parsed && consume(b, "shouldFail")) {
+                    parsed = expect(b, "=") && parseValueLiteral(b);
+                }
+            }
+            case "virtual" -> {
+                type = MSpecTypes.VIRTUAL_FIELD;
+                parsed = parseTypeReference(b) && parseIdExpression(b) && parseExpression(b);
+            }
+            default -> {
+                m.drop();
+                b.error("Field type expected");
+                return false;
+            }
+        }
+        m.done(type);
+        return parsed;
+    }
+
+    // typeReference : complexTypeReference=IDENTIFIER_LITERAL (LRBRACKET params=multipleExpressions RRBRACKET)?
+    //               | simpleTypeReference=dataType
+    private static boolean parseTypeReference(PsiBuilder b) {
+        IElementType tokenType = b.getTokenType();
+        if (tokenType == MSpecTokenTypes.PRIMITIVE_TYPE) {
+            PsiBuilder.Marker m = b.mark();
+            parseDataType(b);
+            m.done(MSpecTypes.TYPE_REFERENCE);
+        } else if (tokenType == MSpecTokenTypes.IDENTIFIER) {
+            PsiBuilder.Marker m = b.mark();
+            PsiBuilder.Marker complex = b.mark();
+            b.advanceLexer();
+            if (at(b, "(")) {
+                b.advanceLexer();
+                if (parseMultipleExpressions(b)) {
+                    expect(b, ")");
+                }
+            }
+            complex.done(MSpecTypes.COMPLEX_TYPE_REFERENCE);
+            m.done(MSpecTypes.TYPE_REFERENCE);
+        } else {
+            b.error("Type expected");
+            return false;
+        }
+        return true;
+    }
+
+    // dataType : BIT | BYTE | INT size | ... | VSTRING (length=expression)? | ...
+    private static boolean parseDataType(PsiBuilder b) {
+        if (b.getTokenType() != MSpecTokenTypes.PRIMITIVE_TYPE) {
+            b.error("Data type expected");
+            return false;
+        }
+        PsiBuilder.Marker m = b.mark();
+        boolean sized = at(b, "int") || at(b, "uint") || at(b, "float") || at(b, "ufloat") || at(b, "string");
+        boolean variableString = at(b, "vstring");
+        b.advanceLexer();
+        if (sized && b.getTokenType() == MSpecTokenTypes.NUMBER) {
+            b.advanceLexer();
+        } else if (variableString && at(b, "'")) {
+            parseExpression(b);
+        }
+        m.done(MSpecTypes.DATA_TYPE);
+        return true;
+    }
+
+    // argumentList : argument (',' argument)*, including the surrounding parentheses
+    private static void parseArgumentList(PsiBuilder b) {
+        PsiBuilder.Marker m = b.mark();
+        b.advanceLexer(); // (
+        do {
+            PsiBuilder.Marker argument = b.mark();
+            if (parseTypeReference(b)) {
+                parseIdExpression(b);
+            }
+            argument.done(MSpecTypes.ARGUMENT);
+        } while (consume(b, ","));
+        expect(b, ")");
+        m.done(MSpecTypes.ARGUMENT_LIST);
+    }
+
+    // attributeList : (name=IDENTIFIER_LITERAL '=' value=expression)*
+    private static void parseAttributeList(PsiBuilder b) {
+        if (!atAttribute(b)) {
+            return;
+        }
+        PsiBuilder.Marker m = b.mark();
+        while (atAttribute(b)) {
+            PsiBuilder.Marker attribute = b.mark();
+            parseIdExpression(b);
+            b.advanceLexer(); // =
+            parseExpression(b);
+            attribute.done(MSpecTypes.ATTRIBUTE);
+        }
+        m.done(MSpecTypes.ATTRIBUTE_LIST);
+    }
+
+    private static boolean atAttribute(PsiBuilder b) {
+        if (b.getTokenType() != MSpecTokenTypes.IDENTIFIER) {
+            return false;
+        }
+        PsiBuilder.Marker m = b.mark();
+        b.advanceLexer();
+        boolean result = at(b, "=");
+        m.rollbackTo();
+        return result;
+    }
+
+    // multipleVariableLiterals : variableLiteral (',' variableLiteral)*
+    // variableLiteral : IDENTIFIER_LITERAL ('.' variableLiteral)? | variableLiteral '[' INTEGER_LITERAL ']'
+    private static boolean parseMultipleVariableLiterals(PsiBuilder b) {
+        do {
+            if (!parseIdExpression(b)) {
+                return false;
+            }
+            while (true) {
+                if (at(b, ".")) {
+                    b.advanceLexer();
+                    if (!parseIdExpression(b)) {
+                        return false;
+                    }
+                } else if (at(b, "[") && b.lookAhead(1) == MSpecTokenTypes.NUMBER) {
+                    b.advanceLexer();
+                    b.advanceLexer();
+                    if (!expect(b, "]")) {
+                        return false;
+                    }
+                } else {
+                    break;
+                }
+            }
+        } while (consume(b, ","));
+        return true;
+    }
+
+    private static boolean parseLoopType(PsiBuilder b) {
+        if (b.getTokenType() == MSpecTokenTypes.ARRAY_LOOP_TYPE) {
+            b.advanceLexer();
+        } else {
+            b.error("'count', 'length' or 'terminated' expected");
+            return false;
+        }
+        return true;
+    }
+
+    // valueLiteral : BOOLEAN_LITERAL | HEX_LITERAL | INTEGER_LITERAL | FLOAT_LITERAL | STRING_LITERAL
+    private static boolean parseValueLiteral(PsiBuilder b) {
+        IElementType tokenType = b.getTokenType();
+        if (tokenType == MSpecTokenTypes.NUMBER || tokenType == MSpecTokenTypes.STRING
+                || at(b, "true") || at(b, "false")) {
+            b.advanceLexer();
+        } else {
+            b.error("Literal expected");
+            return false;
+        }
+        return true;
+    }
+
+    // multipleExpressions : expression (',' expression)*
+    private static boolean parseMultipleExpressions(PsiBuilder b) {
+        do {
+            if (!parseExpression(b)) {
+                return false;
+            }
+        } while (consume(b, ","));
+        return true;
+    }
+
+    // expression : TICK innerExpression TICK | ASTERISK
+    private static boolean parseExpression(PsiBuilder b) {
+        if (!atExpression(b)) {
+            b.error("Expression expected");
+            return false;
+        }
+        PsiBuilder.Marker m = b.mark();
+        if (at(b, "*")) {
+            b.advanceLexer();
+            m.done(MSpecTypes.EXPRESSION);
+            return true;
+        }
+        b.advanceLexer(); // '
+        int depth = 0;
+        while (!b.eof() && !at(b, "'")) {
+            if (at(b, "[")) {
+                depth++;
+            } else if (at(b, "]")) {
+                if (depth == 0) {
+                    break;
+                }
+                depth--;
+            }
+            if (b.getTokenType() == MSpecTokenTypes.IDENTIFIER) {
+                PsiBuilder.Marker id = b.mark();
+                b.advanceLexer();
+                id.done(MSpecTypes.ID_EXPRESSION);
+            } else {
+                b.advanceLexer();
+            }
+        }
+        boolean closed = expect(b, "'");
+        m.done(MSpecTypes.EXPRESSION);
+        return closed;
+    }
+
+    private static boolean atExpression(PsiBuilder b) {
+        return at(b, "'") || at(b, "*");
+    }
+
+    // idExpression : IDENTIFIER_LITERAL | ARRAY_LOOP_TYPE | <any keyword>
+    private static boolean parseIdExpression(PsiBuilder b) {
+        IElementType tokenType = b.getTokenType();
+        boolean id = tokenType == MSpecTokenTypes.IDENTIFIER || tokenType == MSpecTokenTypes.ARRAY_LOOP_TYPE
+                || (MSpecTokenSets.KEYWORDS.contains(tokenType) && !at(b, "true") && !at(b, "false"));
+        if (!id) {
+            b.error("Identifier expected");
+            return false;
+        }
+        PsiBuilder.Marker m = b.mark();
+        b.advanceLexer();
+        m.done(MSpecTypes.ID_EXPRESSION);
+        return true;
+    }
+
+    /**
+     * Consumes the closing bracket of the current construct. Anything before it is skipped as one
+     * error, but a '[' ends the skip, so the next sibling still parses.
+     */
+    private static void closeBracket(PsiBuilder b) {
+        if (consume(b, "]")) {
+            return;
+        }
+        if (b.eof() || at(b, "[")) {
+            b.error("']' expected");
+            return;
+        }
+        PsiBuilder.Marker error = b.mark();
+        while (!b.eof() && !at(b, "[") && !at(b, "]")) {
+            b.advanceLexer();
+        }
+        error.error("']' expected");
+        consume(b, "]");
+    }
+
+    private static void skipWithError(PsiBuilder b, String message) {
+        PsiBuilder.Marker error = b.mark();
+        b.advanceLexer();
+        error.error(message);
+    }
+
+    private static boolean expect(PsiBuilder b, String text) {
+        if (consume(b, text)) {
+            return true;
+        }
+        b.error("'" + text + "' expected");
+        return false;
+    }
+
+    private static boolean consume(PsiBuilder b, String text) {
+        if (at(b, text)) {
+            b.advanceLexer();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the token after the current one (a '[') has the given text.
+     */
+    private static boolean lookAheadIs(PsiBuilder b, String text) {
+        PsiBuilder.Marker m = b.mark();
+        b.advanceLexer();
+        boolean result = at(b, text);
+        m.rollbackTo();
+        return result;
+    }
+
+    /**
+     * Compares the current token with the given text without copying the token text.
+     */
+    private static boolean at(PsiBuilder b, String text) {
+        if (b.getTokenType() == null) {
+            return false;
+        }
+        int start = b.getCurrentOffset();
+        int end = b.rawTokenTypeStart(1);
+        if (end - start != text.length()) {
+            return false;
+        }
+        CharSequence original = b.getOriginalText();
+        for (int i = 0; i < text.length(); i++) {
+            if (original.charAt(start + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
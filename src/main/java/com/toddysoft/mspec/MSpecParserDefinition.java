@@ -8,10 +8,18 @@ import com.intellij.openapi.project.Project;
 import com.intellij.psi.FileViewProvider;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.IFileElementType;
 import com.intellij.psi.tree.TokenSet;
 import com.toddysoft.mspec.parser.MSpecLexer;
+import com.toddysoft.mspec.psi.MSpecArrayFieldElement;
+import com.toddysoft.mspec.psi.MSpecComplexTypeDefinitionElement;
+import com.toddysoft.mspec.psi.MSpecDataTypeElement;
+import com.toddysoft.mspec.psi.MSpecFieldDefinitionElement;
 import com.toddysoft.mspec.psi.MSpecFile;
+import com.toddysoft.mspec.psi.MSpecIdExpressionElement;
+import com.toddysoft.mspec.psi.MSpecSimpleFieldElement;
+import com.toddysoft.mspec.psi.MSpecTypeDeclarationElement;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -36,6 +44,12 @@ public class MSpecParserDefinition implements ParserDefinition {
         return FILE;
     }
 
+    @NotNull
+    @Override
+    public TokenSet getWhitespaceTokens() {
+        return MSpecTokenSets.WHITESPACES;
+    }
+
     @NotNull
     @Override
     public TokenSet getCommentTokens() {
@@ -51,6 +65,22 @@ public class MSpecParserDefinition implements ParserDefinition {
     @NotNull
     @Override
     public PsiElement createElement(ASTNode node) {
+        IElementType type = node.getElementType();
+        if (type == MSpecTypes.COMPLEX_TYPE_DEFINITION) {
+            return new MSpecComplexTypeDefinitionElement(node);
+        } else if (MSpecTypes.TYPE_DECLARATIONS.contains(type)) {
+            return new MSpecTypeDeclarationElement(node);
+        } else if (type == MSpecTypes.FIELD_DEFINITION) {
+            return new MSpecFieldDefinitionElement(node);
+        } else if (type == MSpecTypes.SIMPLE_FIELD) {
+            return new MSpecSimpleFieldElement(node);
+        } else if (type == MSpecTypes.ARRAY_FIELD) {
+            return new MSpecArrayFieldElement(node);
+        } else if (type == MSpecTypes.DATA_TYPE) {
+            return new MSpecDataTypeElement(node);
+        } else if (type == MSpecTypes.ID_EXPRESSION) {
+            return new MSpecIdExpressionElement(node);
+        }
         return new MSpecPsiElement(node);
     }
 
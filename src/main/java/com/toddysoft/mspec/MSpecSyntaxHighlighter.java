@@ -7,14 +7,28 @@ import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
 import com.intellij.psi.tree.IElementType;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import static com.intellij.openapi.editor.colors.TextAttributesKey.createTextAttributesKey;
 
 /**
  * Syntax highlighter for MSpec language.
+ * <p>
+ * Highlighting uses the table-driven {@link MSpecHighlightingLexer} unless the ANTLR-based
+ * {@link MSpecLexerAdapter} is requested; both produce the same token stream.
  */
 public class MSpecSyntaxHighlighter extends SyntaxHighlighterBase {
     public static final TextAttributesKey KEYWORD =
             createTextAttributesKey("MSPEC_KEYWORD", DefaultLanguageHighlighterColors.KEYWORD);
+    public static final TextAttributesKey DEFINITION_KEYWORD =
+            createTextAttributesKey("MSPEC_DEFINITION_KEYWORD", KEYWORD);
+    public static final TextAttributesKey FIELD_KEYWORD =
+            createTextAttributesKey("MSPEC_FIELD_KEYWORD", KEYWORD);
+    public static final TextAttributesKey PRIMITIVE_TYPE =
+            createTextAttributesKey("MSPEC_PRIMITIVE_TYPE", KEYWORD);
+    public static final TextAttributesKey ARRAY_LOOP_TYPE =
+            createTextAttributesKey("MSPEC_ARRAY_LOOP_TYPE", KEYWORD);
     public static final TextAttributesKey IDENTIFIER =
             createTextAttributesKey("MSPEC_IDENTIFIER", DefaultLanguageHighlighterColors.IDENTIFIER);
     public static final TextAttributesKey COMMENT =
@@ -27,40 +41,47 @@ public class MSpecSyntaxHighlighter extends SyntaxHighlighterBase {
             createTextAttributesKey("MSPEC_OPERATOR", DefaultLanguageHighlighterColors.OPERATION_SIGN);
     public static final TextAttributesKey BRACKET =
             createTextAttributesKey("MSPEC_BRACKET", DefaultLanguageHighlighterColors.BRACKETS);
+    // Not a token colour: a type reference resolving to another file, set by MSpecHighlightVisitor.
+    // Italic by default in the bundled colour schemes.
+    public static final TextAttributesKey EXTERNAL_TYPE_REFERENCE =
+            createTextAttributesKey("MSPEC_EXTERNAL_TYPE_REFERENCE", DefaultLanguageHighlighterColors.CLASS_REFERENCE);
 
     private static final TextAttributesKey[] EMPTY_KEYS = new TextAttributesKey[0];
-    private static final TextAttributesKey[] KEYWORD_KEYS = new TextAttributesKey[]{KEYWORD};
-    private static final TextAttributesKey[] IDENTIFIER_KEYS = new TextAttributesKey[]{IDENTIFIER};
-    private static final TextAttributesKey[] COMMENT_KEYS = new TextAttributesKey[]{COMMENT};
-    private static final TextAttributesKey[] STRING_KEYS = new TextAttributesKey[]{STRING};
-    private static final TextAttributesKey[] NUMBER_KEYS = new TextAttributesKey[]{NUMBER};
-    private static final TextAttributesKey[] OPERATOR_KEYS = new TextAttributesKey[]{OPERATOR};
-    private static final TextAttributesKey[] BRACKET_KEYS = new TextAttributesKey[]{BRACKET};
+    private static final Map<IElementType, TextAttributesKey[]> KEYS = new HashMap<>();
+
+    static {
+        KEYS.put(MSpecTokenTypes.KEYWORD, pack(KEYWORD));
+        KEYS.put(MSpecTokenTypes.DEFINITION_KEYWORD, pack(DEFINITION_KEYWORD));
+        KEYS.put(MSpecTokenTypes.FIELD_KEYWORD, pack(FIELD_KEYWORD));
+        KEYS.put(MSpecTokenTypes.PRIMITIVE_TYPE, pack(PRIMITIVE_TYPE));
+        KEYS.put(MSpecTokenTypes.ARRAY_LOOP_TYPE, pack(ARRAY_LOOP_TYPE));
+        KEYS.put(MSpecTokenTypes.IDENTIFIER, pack(IDENTIFIER));
+        KEYS.put(MSpecTokenTypes.COMMENT, pack(COMMENT));
+        KEYS.put(MSpecTokenTypes.STRING, pack(STRING));
+        KEYS.put(MSpecTokenTypes.NUMBER, pack(NUMBER));
+        KEYS.put(MSpecTokenTypes.OPERATOR, pack(OPERATOR));
+        KEYS.put(MSpecTokenTypes.BRACKET, pack(BRACKET));
+    }
+
+    private final boolean useAntlrLexer;
+
+    public MSpecSyntaxHighlighter() {
+        this(false);
+    }
+
+    public MSpecSyntaxHighlighter(boolean useAntlrLexer) {
+        this.useAntlrLexer = useAntlrLexer;
+    }
 
     @NotNull
     @Override
     public Lexer getHighlightingLexer() {
-        return new MSpecLexerAdapter();
+        return useAntlrLexer ? new MSpecLexerAdapter() : new MSpecHighlightingLexer();
     }
 
     @NotNull
     @Override
     public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
-        if (tokenType.equals(MSpecTokenTypes.KEYWORD)) {
-            return KEYWORD_KEYS;
-        } else if (tokenType.equals(MSpecTokenTypes.IDENTIFIER)) {
-            return IDENTIFIER_KEYS;
-        } else if (tokenType.equals(MSpecTokenTypes.COMMENT)) {
-            return COMMENT_KEYS;
-        } else if (tokenType.equals(MSpecTokenTypes.STRING)) {
-            return STRING_KEYS;
-        } else if (tokenType.equals(MSpecTokenTypes.NUMBER)) {
-            return NUMBER_KEYS;
-        } else if (tokenType.equals(MSpecTokenTypes.OPERATOR)) {
-            return OPERATOR_KEYS;
-        } else if (tokenType.equals(MSpecTokenTypes.BRACKET)) {
-            return BRACKET_KEYS;
-        }
-        return EMPTY_KEYS;
+        return KEYS.getOrDefault(tokenType, EMPTY_KEYS);
     }
 }
@@ -3,17 +3,22 @@ package com.toddysoft.mspec;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighterFactory;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
  * Factory for creating MSpec syntax highlighters.
+ * <p>
+ * The registry key {@value #ANTLR_LEXER_KEY} switches highlighting back to the ANTLR lexer.
  */
 public class MSpecSyntaxHighlighterFactory extends SyntaxHighlighterFactory {
+    public static final String ANTLR_LEXER_KEY = "mspec.highlighting.antlr.lexer";
+
     @NotNull
     @Override
     public SyntaxHighlighter getSyntaxHighlighter(@Nullable Project project, @Nullable VirtualFile virtualFile) {
-        return new MSpecSyntaxHighlighter();
+        return new MSpecSyntaxHighlighter(Registry.is(ANTLR_LEXER_KEY, false));
     }
 }
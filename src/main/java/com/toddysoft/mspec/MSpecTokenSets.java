@@ -6,9 +6,11 @@ import com.intellij.psi.tree.TokenSet;
  * Token sets for MSpec language.
  */
 public class MSpecTokenSets {
+    public static final TokenSet WHITESPACES = TokenSet.create(MSpecTokenTypes.WHITESPACE);
     public static final TokenSet COMMENTS = TokenSet.create(MSpecTokenTypes.COMMENT);
     public static final TokenSet STRINGS = TokenSet.create(MSpecTokenTypes.STRING);
-    public static final TokenSet KEYWORDS = TokenSet.create(MSpecTokenTypes.KEYWORD);
+    public static final TokenSet KEYWORDS = TokenSet.create(MSpecTokenTypes.KEYWORD,
+            MSpecTokenTypes.DEFINITION_KEYWORD, MSpecTokenTypes.FIELD_KEYWORD, MSpecTokenTypes.PRIMITIVE_TYPE);
     public static final TokenSet IDENTIFIERS = TokenSet.create(MSpecTokenTypes.IDENTIFIER);
     public static final TokenSet NUMBERS = TokenSet.create(MSpecTokenTypes.NUMBER);
 }
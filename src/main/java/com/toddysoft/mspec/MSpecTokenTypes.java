@@ -3,17 +3,25 @@ package com.toddysoft.mspec;
 import com.intellij.psi.tree.IElementType;
 import com.toddysoft.mspec.parser.MSpecLexer;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Mapping between ANTLR token types and IntelliJ token types.
+ * <p>
+ * The mapping is an array indexed by ANTLR token type. ERROR_CHAR is the last lexer rule of the
+ * grammar and therefore has the highest token type. Its value is a compile-time constant, so
+ * sizing the array does not load (and deserialize the ATN of) the ANTLR lexer.
  */
 public class MSpecTokenTypes {
-    private static final Map<Integer, IElementType> tokenTypeMap = new HashMap<>();
+    private static final IElementType[] tokenTypeMap = new IElementType[MSpecLexer.ERROR_CHAR + 1];
 
     // Keywords
     public static final IElementType KEYWORD = new MSpecElementType("KEYWORD");
+    public static final IElementType DEFINITION_KEYWORD = new MSpecElementType("DEFINITION_KEYWORD");
+    public static final IElementType FIELD_KEYWORD = new MSpecElementType("FIELD_KEYWORD");
+    public static final IElementType PRIMITIVE_TYPE = new MSpecElementType("PRIMITIVE_TYPE");
+    // count, length, terminated - only when used as the loop type of an array field
+    public static final IElementType ARRAY_LOOP_TYPE = new MSpecElementType("ARRAY_LOOP_TYPE");
     public static final IElementType IDENTIFIER = new MSpecElementType("IDENTIFIER");
     public static final IElementType COMMENT = new MSpecElementType("COMMENT");
     public static final IElementType STRING = new MSpecElementType("STRING");
@@ -24,100 +32,105 @@ public class MSpecTokenTypes {
     public static final IElementType WHITESPACE = new MSpecElementType("WHITESPACE");
 
     static {
+        Arrays.fill(tokenTypeMap, UNKNOWN);
+
         // Operators (T__0 through T__23 are literal operators from the grammar)
         // T__0='=', T__1=',', T__2='.', T__3='?', T__4=':', T__5='"', T__6='!',
         // T__7='+', T__8='-', T__9='/', T__10='^', T__11='==', T__12='!=',
         // T__13='>>', T__14='<<', T__15='>', T__16='<', T__17='>=', T__18='<=',
         // T__19='&&', T__20='||', T__21='&', T__22='|', T__23='%'
         for (int i = 1; i <= 24; i++) {
-            tokenTypeMap.put(i, OPERATOR);
+            tokenTypeMap[i] = OPERATOR;
         }
 
         // Special tokens
-        tokenTypeMap.put(MSpecLexer.TICK, OPERATOR);
-        tokenTypeMap.put(MSpecLexer.ASTERISK, OPERATOR);
+        tokenTypeMap[MSpecLexer.TICK] = OPERATOR;
+        tokenTypeMap[MSpecLexer.ASTERISK] = OPERATOR;
 
         // Map keywords
-        tokenTypeMap.put(MSpecLexer.CONSTANTS, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.GLOBALS, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.CONTEXT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.TYPE, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.DISCRIMINATEDTYPE, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.DATAIO, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.ENUM, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.BATCHSET, KEYWORD);
+        tokenTypeMap[MSpecLexer.CONSTANTS] = DEFINITION_KEYWORD;
+        tokenTypeMap[MSpecLexer.GLOBALS] = DEFINITION_KEYWORD;
+        tokenTypeMap[MSpecLexer.CONTEXT] = DEFINITION_KEYWORD;
+        tokenTypeMap[MSpecLexer.TYPE] = DEFINITION_KEYWORD;
+        tokenTypeMap[MSpecLexer.DISCRIMINATEDTYPE] = DEFINITION_KEYWORD;
+        tokenTypeMap[MSpecLexer.DATAIO] = DEFINITION_KEYWORD;
+        tokenTypeMap[MSpecLexer.ENUM] = DEFINITION_KEYWORD;
+        tokenTypeMap[MSpecLexer.BATCHSET] = DEFINITION_KEYWORD;
 
         // Field keywords
-        tokenTypeMap.put(MSpecLexer.ABSTRACT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.ARRAY, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.ASSERT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.CHECKSUM, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.CONST, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.DISCRIMINATOR, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.IMPLICIT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.MANUALARRAY, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.MANUAL, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.OPTIONAL, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.PADDING, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.PEEK, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.RESERVED, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.SIMPLE, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.STATE, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.TYPESWITCH, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.UNKNOWN, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.VALIDATION, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.VIRTUAL, KEYWORD);
+        tokenTypeMap[MSpecLexer.ABSTRACT] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.ARRAY] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.ASSERT] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.CHECKSUM] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.CONST] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.DISCRIMINATOR] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.IMPLICIT] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.MANUALARRAY] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.MANUAL] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.OPTIONAL] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.PADDING] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.PEEK] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.RESERVED] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.SIMPLE] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.STATE] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.TYPESWITCH] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.UNKNOWN] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.VALIDATION] = FIELD_KEYWORD;
+        tokenTypeMap[MSpecLexer.VIRTUAL] = FIELD_KEYWORD;
 
         // Type keywords
-        tokenTypeMap.put(MSpecLexer.BIT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.BYTE, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.INT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.VINT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.UINT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.VUINT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.FLOAT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.UFLOAT, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.STRING, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.VSTRING, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.TIME, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.DATE, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.DATETIME, KEYWORD);
-        tokenTypeMap.put(MSpecLexer.SHOULD_FAIL, KEYWORD);
+        tokenTypeMap[MSpecLexer.BIT] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.BYTE] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.INT] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.VINT] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.UINT] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.VUINT] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.FLOAT] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.UFLOAT] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.STRING] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.VSTRING] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.TIME] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.DATE] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.DATETIME] = PRIMITIVE_TYPE;
+        tokenTypeMap[MSpecLexer.SHOULD_FAIL] = KEYWORD;
 
         // ARRAY_LOOP_TYPE (count, length, terminated) can be used as identifiers in field names
-        // So we map them as IDENTIFIER by default rather than KEYWORD
-        tokenTypeMap.put(MSpecLexer.ARRAY_LOOP_TYPE, IDENTIFIER);
+        // So we map them as IDENTIFIER by default; MSpecLexerBase knows when one is a loop type
+        tokenTypeMap[MSpecLexer.ARRAY_LOOP_TYPE] = IDENTIFIER;
 
         // Comments
-        tokenTypeMap.put(MSpecLexer.LINE_COMMENT, COMMENT);
-        tokenTypeMap.put(MSpecLexer.BLOCK_COMMENT, COMMENT);
+        tokenTypeMap[MSpecLexer.LINE_COMMENT] = COMMENT;
+        tokenTypeMap[MSpecLexer.BLOCK_COMMENT] = COMMENT;
 
         // Literals
-        tokenTypeMap.put(MSpecLexer.STRING_LITERAL, STRING);
-        tokenTypeMap.put(MSpecLexer.INTEGER_LITERAL, NUMBER);
-        tokenTypeMap.put(MSpecLexer.FLOAT_LITERAL, NUMBER);
-        tokenTypeMap.put(MSpecLexer.HEX_LITERAL, NUMBER);
-        tokenTypeMap.put(MSpecLexer.BOOLEAN_LITERAL, KEYWORD);
+        tokenTypeMap[MSpecLexer.STRING_LITERAL] = STRING;
+        tokenTypeMap[MSpecLexer.INTEGER_LITERAL] = NUMBER;
+        tokenTypeMap[MSpecLexer.FLOAT_LITERAL] = NUMBER;
+        tokenTypeMap[MSpecLexer.HEX_LITERAL] = NUMBER;
+        tokenTypeMap[MSpecLexer.BOOLEAN_LITERAL] = KEYWORD;
 
         // Identifiers
-        tokenTypeMap.put(MSpecLexer.IDENTIFIER_LITERAL, IDENTIFIER);
+        tokenTypeMap[MSpecLexer.IDENTIFIER_LITERAL] = IDENTIFIER;
 
         // Brackets
-        tokenTypeMap.put(MSpecLexer.LBRACKET, BRACKET);
-        tokenTypeMap.put(MSpecLexer.RBRACKET, BRACKET);
-        tokenTypeMap.put(MSpecLexer.LRBRACKET, BRACKET);
-        tokenTypeMap.put(MSpecLexer.RRBRACKET, BRACKET);
-        tokenTypeMap.put(MSpecLexer.LCBRACKET, BRACKET);
-        tokenTypeMap.put(MSpecLexer.RCBRACKET, BRACKET);
+        tokenTypeMap[MSpecLexer.LBRACKET] = BRACKET;
+        tokenTypeMap[MSpecLexer.RBRACKET] = BRACKET;
+        tokenTypeMap[MSpecLexer.LRBRACKET] = BRACKET;
+        tokenTypeMap[MSpecLexer.RRBRACKET] = BRACKET;
+        tokenTypeMap[MSpecLexer.LCBRACKET] = BRACKET;
+        tokenTypeMap[MSpecLexer.RCBRACKET] = BRACKET;
 
         // Whitespace
-        tokenTypeMap.put(MSpecLexer.WS, WHITESPACE);
-        tokenTypeMap.put(MSpecLexer.NEWLINE, WHITESPACE);
-        tokenTypeMap.put(MSpecLexer.EmptyLine, WHITESPACE);
+        tokenTypeMap[MSpecLexer.WS] = WHITESPACE;
+        tokenTypeMap[MSpecLexer.NEWLINE] = WHITESPACE;
+        tokenTypeMap[MSpecLexer.EmptyLine] = WHITESPACE;
     }
 
     public static IElementType getTokenType(int antlrTokenType) {
-        return tokenTypeMap.getOrDefault(antlrTokenType, UNKNOWN);
+        if (antlrTokenType < 0 || antlrTokenType >= tokenTypeMap.length) {
+            return UNKNOWN;
+        }
+        return tokenTypeMap[antlrTokenType];
     }
 
     public static class MSpecElementType extends IElementType {
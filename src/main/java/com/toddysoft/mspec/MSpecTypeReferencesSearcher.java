@@ -0,0 +1,27 @@
+package com.toddysoft.mspec;
+
+import com.intellij.openapi.application.QueryExecutorBase;
+import com.intellij.psi.PsiReference;
+import com.intellij.psi.search.searches.ReferencesSearch;
+import com.intellij.util.Processor;
+import com.toddysoft.mspec.psi.MSpecTypeDeclaration;
+import com.toddysoft.mspec.util.MSpecTypeUsageSearch;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Finds the references to MSpec types for Find Usages. Type references have no PsiReferences of
+ * their own, so they are looked up in the usage index instead.
+ */
+public class MSpecTypeReferencesSearcher extends QueryExecutorBase<PsiReference, ReferencesSearch.SearchParameters> {
+    public MSpecTypeReferencesSearcher() {
+        super(true);
+    }
+
+    @Override
+    public void processQuery(@NotNull ReferencesSearch.SearchParameters queryParameters,
+                             @NotNull Processor<? super PsiReference> consumer) {
+        if (queryParameters.getElementToSearch() instanceof MSpecTypeDeclaration declaration) {
+            MSpecTypeUsageSearch.processReferences(declaration, queryParameters.getEffectiveSearchScope(), consumer);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.toddysoft.mspec;
 
 import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
 
 /**
  * Element types corresponding to ANTLR grammar rules.
@@ -12,7 +13,7 @@ public interface MSpecTypes {
     IElementType CONSTANTS_DEFINITION = new MSpecElementType("CONSTANTS_DEFINITION");
     IElementType GLOBALS_DEFINITION = new MSpecElementType("GLOBALS_DEFINITION");
     IElementType CONTEXT_DEFINITION = new MSpecElementType("CONTEXT_DEFINITION");
-    IElementType COMPLEX_TYPE_DEFINITION = new MSpecElementType("COMPLEX_TYPE_DEFINITION");
+    IElementType COMPLEX_TYPE_DEFINITION = new MSpecComplexTypeDefinitionElementType("COMPLEX_TYPE_DEFINITION");
 
     // Complex types
     IElementType COMPLEX_TYPE = new MSpecElementType("COMPLEX_TYPE");
@@ -20,6 +21,8 @@ public interface MSpecTypes {
     IElementType DISCRIMINATED_TYPE_DEFINITION = new MSpecElementType("DISCRIMINATED_TYPE_DEFINITION");
     IElementType ENUM_DEFINITION = new MSpecElementType("ENUM_DEFINITION");
     IElementType DATAIO_DEFINITION = new MSpecElementType("DATAIO_DEFINITION");
+    IElementType ENUM_VALUE_DEFINITION = new MSpecElementType("ENUM_VALUE_DEFINITION");
+    IElementType BATCH_SET_DEFINITION = new MSpecElementType("BATCH_SET_DEFINITION");
 
     // Field definitions
     IElementType FIELD_DEFINITION = new MSpecElementType("FIELD_DEFINITION");
@@ -56,5 +59,11 @@ public interface MSpecTypes {
     IElementType EXPRESSION = new MSpecElementType("EXPRESSION");
     IElementType ATTRIBUTE = new MSpecElementType("ATTRIBUTE");
     IElementType ATTRIBUTE_LIST = new MSpecElementType("ATTRIBUTE_LIST");
+    IElementType ARGUMENT = new MSpecElementType("ARGUMENT");
+    IElementType ARGUMENT_LIST = new MSpecElementType("ARGUMENT_LIST");
     IElementType CASE_STATEMENT = new MSpecElementType("CASE_STATEMENT");
+
+    // Elements that may define a type, see MSpecTypeDeclaration
+    TokenSet TYPE_DECLARATIONS = TokenSet.create(TYPE_DEFINITION, DISCRIMINATED_TYPE_DEFINITION,
+            ENUM_DEFINITION, DATAIO_DEFINITION, CASE_STATEMENT);
 }
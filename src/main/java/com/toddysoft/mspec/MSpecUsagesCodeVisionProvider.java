@@ -0,0 +1,41 @@
+package com.toddysoft.mspec;
+
+import com.intellij.codeInsight.hints.codeVision.ReferencesCodeVisionProvider;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.toddysoft.mspec.psi.MSpecFile;
+import com.toddysoft.mspec.psi.MSpecTypeDeclaration;
+import com.toddysoft.mspec.util.MSpecTypeUsageSearch;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Shows "N usages" above every type definition. The count comes from the usage index.
+ */
+public class MSpecUsagesCodeVisionProvider extends ReferencesCodeVisionProvider {
+    @NotNull
+    @Override
+    public String getId() {
+        return "mspec.references";
+    }
+
+    @Override
+    public boolean acceptsFile(@NotNull PsiFile file) {
+        return file instanceof MSpecFile;
+    }
+
+    @Override
+    public boolean acceptsElement(@NotNull PsiElement element) {
+        return element instanceof MSpecTypeDeclaration declaration && declaration.getName() != null;
+    }
+
+    @Nullable
+    @Override
+    public String getHint(@NotNull PsiElement element, @NotNull PsiFile file) {
+        int count = MSpecTypeUsageSearch.countReferences((MSpecTypeDeclaration) element);
+        if (count == 0) {
+            return "no usages";
+        }
+        return count == 1 ? "1 usage" : count + " usages";
+    }
+}
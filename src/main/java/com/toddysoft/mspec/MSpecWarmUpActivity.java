@@ -0,0 +1,99 @@
+package com.toddysoft.mspec;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.toddysoft.mspec.util.MSpecPackageFiles;
+import com.toddysoft.mspec.util.MSpecPackageSymbols;
+import com.toddysoft.mspec.util.MSpecPackageUtil;
+import com.toddysoft.mspec.util.MSpecTypeIndex;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Computes the caches the first highlighting pass of an MSpec file needs (source roots, the package
+ * map and the type table of every package) in a background task after the project is opened, so the
+ * first editor does not pay for them on the highlighting thread.
+ * <p>
+ * The task starts once indexes are ready and runs each step in a non-blocking read action in smart
+ * mode, which gives way to write actions. If the project goes dumb again, the next step waits until
+ * indexes are back. Projects without MSpec files are skipped.
+ */
+public final class MSpecWarmUpActivity implements StartupActivity.DumbAware {
+
+    @Override
+    public void runActivity(@NotNull Project project) {
+        DumbService.getInstance(project).runWhenSmart(() -> queue(project));
+    }
+
+    private static void queue(Project project) {
+        if (project.isDisposed()) {
+            return;
+        }
+        new Task.Backgroundable(project, "Preparing MSpec type scopes", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                warmUp(project, indicator);
+            }
+        }.queue();
+    }
+
+    private static void warmUp(Project project, ProgressIndicator indicator) {
+        if (!read(project, indicator, () -> FileTypeIndex.containsFileOfType(
+                MSpecFileType.INSTANCE, GlobalSearchScope.projectScope(project)))) {
+            return;
+        }
+
+        indicator.setText("Collecting MSpec packages");
+        List<MSpecPackageUtil.PackageKey> packages =
+                read(project, indicator, () -> MSpecPackageFiles.getInstance(project).getPackages());
+
+        indicator.setIndeterminate(false);
+        MSpecPackageSymbols symbols = MSpecPackageSymbols.getInstance(project);
+        for (int i = 0; i < packages.size(); i++) {
+            indicator.setText("Collecting MSpec types");
+            indicator.setFraction((double) i / packages.size());
+            MSpecPackageUtil.PackageKey key = packages.get(i);
+            read(project, indicator, () -> symbols.getTypesInPackage(key));
+        }
+
+        // The files already open in an editor are the ones highlighted first
+        for (VirtualFile file : FileEditorManager.getInstance(project).getOpenFiles()) {
+            read(project, indicator, () -> warmUpFile(project, file));
+        }
+    }
+
+    private static Boolean warmUpFile(Project project, VirtualFile file) {
+        if (file.isValid() && file.getFileType() == MSpecFileType.INSTANCE) {
+            PsiFile psiFile = PsiManager.getInstance(project).findFile(file);
+            if (psiFile != null) {
+                MSpecPackageUtil.findRelatedMSpecFiles(psiFile);
+                MSpecTypeIndex.getTypesInScope(psiFile);
+            }
+        }
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Runs one step in a non-blocking read action, once indexes are ready.
+     */
+    private static <T> T read(Project project, ProgressIndicator indicator, Callable<T> step) {
+        indicator.checkCanceled();
+        return ReadAction.nonBlocking(step)
+                .inSmartMode(project)
+                .expireWith(project)
+                .wrapProgress(indicator)
+                .executeSynchronously();
+    }
+}
@@ -1,8 +1,13 @@
 package com.toddysoft.mspec.psi;
 
 import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.toddysoft.mspec.MSpecPsiElement;
+import com.toddysoft.mspec.MSpecTypes;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * PSI element for complex type definitions (type, discriminatedType, enum, dataIo).
@@ -11,4 +16,27 @@ public class MSpecComplexTypeDefinitionElement extends MSpecPsiElement {
     public MSpecComplexTypeDefinitionElement(@NotNull ASTNode node) {
         super(node);
     }
+
+    private static final TokenSet DEFINITIONS = TokenSet.create(MSpecTypes.TYPE_DEFINITION,
+            MSpecTypes.DISCRIMINATED_TYPE_DEFINITION, MSpecTypes.ENUM_DEFINITION, MSpecTypes.DATAIO_DEFINITION);
+
+    /**
+     * The type, discriminatedType, enum or dataIo definition inside the brackets.
+     */
+    @Nullable
+    public PsiElement getDefinition() {
+        return findChildByType(DEFINITIONS);
+    }
+
+    @Nullable
+    public MSpecIdExpressionElement getNameElement() {
+        PsiElement definition = getDefinition();
+        return definition == null ? null : PsiTreeUtil.getChildOfType(definition, MSpecIdExpressionElement.class);
+    }
+
+    @Nullable
+    public String getTypeName() {
+        MSpecIdExpressionElement nameElement = getNameElement();
+        return nameElement == null ? null : nameElement.getText();
+    }
 }
@@ -1,8 +1,12 @@
 package com.toddysoft.mspec.psi;
 
 import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.toddysoft.mspec.MSpecPsiElement;
+import com.toddysoft.mspec.MSpecTypes;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * PSI element for field definitions.
@@ -12,4 +16,33 @@ public class MSpecFieldDefinitionElement extends MSpecPsiElement {
     public MSpecFieldDefinitionElement(@NotNull ASTNode node) {
         super(node);
     }
+
+    /**
+     * The field inside the brackets, e.g. the SIMPLE_FIELD of {@code [simple uint 8 foo]}.
+     */
+    @Nullable
+    public MSpecPsiElement getField() {
+        for (MSpecPsiElement child : PsiTreeUtil.getChildrenOfTypeAsList(this, MSpecPsiElement.class)) {
+            if (child.getNode().getElementType() != MSpecTypes.ATTRIBUTE_LIST) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    public PsiElement getTypeReference() {
+        MSpecPsiElement field = getField();
+        ASTNode typeReference = field == null ? null : field.getNode().findChildByType(MSpecTypes.TYPE_REFERENCE);
+        return typeReference == null ? null : typeReference.getPsi();
+    }
+
+    /**
+     * The field name; the first identifier of the field that is not part of its type.
+     */
+    @Nullable
+    public MSpecIdExpressionElement getNameElement() {
+        MSpecPsiElement field = getField();
+        return field == null ? null : PsiTreeUtil.getChildOfType(field, MSpecIdExpressionElement.class);
+    }
 }
@@ -3,10 +3,13 @@ package com.toddysoft.mspec.psi;
 import com.intellij.extapi.psi.PsiFileBase;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.psi.FileViewProvider;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.toddysoft.mspec.MSpecFileType;
 import com.toddysoft.mspec.MSpecLanguage;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
+
 /**
  * PSI file implementation for MSpec files.
  */
@@ -21,6 +24,14 @@ public class MSpecFile extends PsiFileBase {
         return MSpecFileType.INSTANCE;
     }
 
+    /**
+     * The top-level [type ...], [discriminatedType ...], [enum ...] and [dataIo ...] blocks.
+     */
+    @NotNull
+    public List<MSpecComplexTypeDefinitionElement> getTypeDefinitions() {
+        return PsiTreeUtil.getChildrenOfTypeAsList(this, MSpecComplexTypeDefinitionElement.class);
+    }
+
     @Override
     public String toString() {
         return "MSpec File";
@@ -0,0 +1,11 @@
+package com.toddysoft.mspec.psi;
+
+import com.intellij.psi.PsiNameIdentifierOwner;
+
+/**
+ * An element that defines a type: the type, discriminatedType, enum or dataIo definition inside a
+ * top-level block, or a typeSwitch case with a name wildcard, e.g. {@code ['0x01' *Request ...]},
+ * which defines the name of its enclosing type plus the case name.
+ */
+public interface MSpecTypeDeclaration extends PsiNameIdentifierOwner {
+}
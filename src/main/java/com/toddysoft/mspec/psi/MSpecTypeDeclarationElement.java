@@ -0,0 +1,83 @@
+package com.toddysoft.mspec.psi;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.IncorrectOperationException;
+import com.toddysoft.mspec.MSpecPsiElement;
+import com.toddysoft.mspec.MSpecTokenTypes;
+import com.toddysoft.mspec.MSpecTypes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * PSI element for type definitions and typeSwitch cases.
+ */
+public class MSpecTypeDeclarationElement extends MSpecPsiElement implements MSpecTypeDeclaration {
+    public MSpecTypeDeclarationElement(@NotNull ASTNode node) {
+        super(node);
+    }
+
+    /**
+     * The name of the defined type, or null for an incomplete definition or a case without a name
+     * wildcard (which does not define a type of its own).
+     */
+    @Nullable
+    @Override
+    public String getName() {
+        return computeName(getNode());
+    }
+
+    @Override
+    public PsiElement setName(@NotNull String name) throws IncorrectOperationException {
+        throw new IncorrectOperationException("Renaming MSpec types is not supported");
+    }
+
+    @Nullable
+    @Override
+    public PsiElement getNameIdentifier() {
+        return PsiTreeUtil.getChildOfType(this, MSpecIdExpressionElement.class);
+    }
+
+    @Override
+    public int getTextOffset() {
+        PsiElement nameIdentifier = getNameIdentifier();
+        return nameIdentifier != null ? nameIdentifier.getTextOffset() : super.getTextOffset();
+    }
+
+    /**
+     * Computes the type name from the AST. A wildcard case is qualified with the name of its
+     * enclosing top-level type.
+     */
+    @Nullable
+    public static String computeName(@NotNull ASTNode node) {
+        ASTNode nameNode = node.findChildByType(MSpecTypes.ID_EXPRESSION);
+        if (nameNode == null) {
+            return null;
+        }
+        if (node.getElementType() != MSpecTypes.CASE_STATEMENT) {
+            return nameNode.getText();
+        }
+        if (!isWildcardCase(node)) {
+            return null;
+        }
+        MSpecComplexTypeDefinitionElement parent =
+                PsiTreeUtil.getParentOfType(node.getPsi(), MSpecComplexTypeDefinitionElement.class);
+        String parentName = parent != null ? parent.getTypeName() : null;
+        return parentName != null ? parentName + nameNode.getText() : null;
+    }
+
+    /**
+     * Whether the case has a '*' directly in front of its name. A '*' discriminator value is wrapped
+     * in an EXPRESSION, so only the wildcard is a direct child.
+     */
+    public static boolean isWildcardCase(@NotNull ASTNode node) {
+        for (ASTNode child = node.getFirstChildNode(); child != null; child = child.getTreeNext()) {
+            if (child.getElementType() == MSpecTokenTypes.OPERATOR && child.getTextLength() == 1
+                    && child.getChars().charAt(0) == '*') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,290 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.toddysoft.mspec.MSpecHighlightingLexer;
+import com.toddysoft.mspec.MSpecLexerBase;
+import com.toddysoft.mspec.MSpecTokenSets;
+import com.toddysoft.mspec.MSpecTokenTypes;
+import com.toddysoft.mspec.psi.MSpecComplexTypeDefinitionElement;
+import com.toddysoft.mspec.psi.MSpecFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The names a tick expression or typeSwitch discriminator of a type block can refer to: the
+ * parameters of the type and its fields (including those of its typeSwitch cases), or for an enum
+ * its constants. For each, the referenced type if it is not primitive, so dotted access like
+ * {@code 'header.length'} can continue in the table of that type.
+ * <p>
+ * A table is built from the text of one top-level block with the highlighting lexer and
+ * {@link MSpecFileModel}, without parsing the block, and cached on the block until the block
+ * changes ({@link MSpecModificationTracker#forBlock}). Offsets are kept relative to the block, so
+ * edits of other blocks of the file keep the table, and typing in one expression only rebuilds the
+ * table of the block being edited.
+ */
+public final class MSpecFieldTable {
+
+    public enum Kind {
+        PARAMETER,
+        FIELD,
+        ENUM_CONSTANT
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private final MSpecComplexTypeDefinitionElement block;
+    private final String[] names;
+    // Null for a primitive type
+    private final String[] typeNames;
+    // Relative to the start of the block
+    private final int[] offsets;
+    private final byte[] kinds;
+
+    private MSpecFieldTable(MSpecComplexTypeDefinitionElement block, String[] names, String[] typeNames,
+                            int[] offsets, byte[] kinds) {
+        this.block = block;
+        this.names = names;
+        this.typeNames = typeNames;
+        this.offsets = offsets;
+        this.kinds = kinds;
+    }
+
+    /**
+     * The table of a top-level block, cached until the block changes. Block trackers only follow
+     * physical files, so for a copy like the one completion works on the table is dropped on any
+     * change of the file.
+     */
+    public static MSpecFieldTable getInstance(@NotNull MSpecComplexTypeDefinitionElement block) {
+        return CachedValuesManager.getCachedValue(block, () -> {
+            PsiFile file = block.getContainingFile();
+            Object dependency = file != null && file.isPhysical()
+                    ? MSpecModificationTracker.getInstance(block.getProject()).forBlock(block)
+                    : block;
+            return CachedValueProvider.Result.create(build(block, block.getNode().getChars()), dependency);
+        });
+    }
+
+    /**
+     * The table of the top-level block around the offset, or null if there is none. Blocks other
+     * than the one found are not parsed.
+     */
+    public static @Nullable MSpecFieldTable findAt(@NotNull PsiFile file, int offset) {
+        if (!(file instanceof MSpecFile mspecFile)) {
+            return null;
+        }
+        for (MSpecComplexTypeDefinitionElement block : mspecFile.getTypeDefinitions()) {
+            if (block.getTextRange().containsOffset(offset)) {
+                return getInstance(block);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The table of the block defining a type in scope of the file, or null if the type is not found.
+     */
+    public static @Nullable MSpecFieldTable findForType(@NotNull PsiFile file, @NotNull String typeName) {
+        MSpecTypeIndex.TypeLocation location = MSpecTypeIndex.findTypeDefinition(file, typeName);
+        if (location == null) {
+            return null;
+        }
+        PsiFile targetFile = location.getPsiFile();
+        return targetFile != null ? findAt(targetFile, location.offset) : null;
+    }
+
+    /**
+     * The table the last segment of a dotted reference at the offset is looked up in: that of the
+     * enclosing block for a plain name, else that of the type the qualifier ends in. A qualifier
+     * starts with a name of the enclosing block or with a type name, e.g. an enum for
+     * {@code 'MessageType.REQUEST'}. Null if the qualifier does not resolve.
+     */
+    public static @Nullable MSpecFieldTable resolveQualifier(@NotNull PsiFile file, int offset,
+                                                            @NotNull List<String> qualifier) {
+        MSpecFieldTable table = findAt(file, offset);
+        for (int i = 0; i < qualifier.size(); i++) {
+            String segment = qualifier.get(i);
+            int index = table != null ? table.indexOf(segment) : -1;
+            if (index >= 0) {
+                String typeName = table.getTypeName(index);
+                table = typeName != null ? findForType(file, typeName) : null;
+            } else if (i == 0 && MSpecTypeIndex.getTypesInScope(file).contains(segment)) {
+                table = findForType(file, segment);
+            } else {
+                return null;
+            }
+            if (table == null) {
+                return null;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * The names before a word separated by dots, e.g. {@code [header, payload]} for
+     * {@code length} in {@code header.payload.length}. Empty for a word not preceded by a dot, null
+     * if a dot follows something other than a name, like an index.
+     */
+    public static @Nullable List<String> getQualifier(@NotNull CharSequence text, int wordStart) {
+        List<String> qualifier = new ArrayList<>();
+        int position = wordStart;
+        while (position > 0 && text.charAt(position - 1) == '.') {
+            int end = position - 1;
+            int start = end;
+            while (start > 0 && isNameChar(text.charAt(start - 1))) {
+                start--;
+            }
+            if (start == end || !MSpecFileModel.isIdentifier(text.subSequence(start, end))) {
+                return null;
+            }
+            qualifier.add(0, text.subSequence(start, end).toString());
+            position = start;
+        }
+        return qualifier;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Index of the first entry with the name, or -1. Tables are small, so this is a plain scan.
+     */
+    public int indexOf(@NotNull String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public @Nullable String getTypeName(int index) {
+        return typeNames[index];
+    }
+
+    public Kind getKind(int index) {
+        return KINDS[kinds[index]];
+    }
+
+    /**
+     * Where the entry is declared.
+     */
+    public MSpecTypeIndex.TypeLocation getLocation(int index) {
+        return new MSpecTypeIndex.TypeLocation(block.getContainingFile(),
+                block.getTextRange().getStartOffset() + offsets[index]);
+    }
+
+    static MSpecFieldTable build(MSpecComplexTypeDefinitionElement block, CharSequence text) {
+        MSpecFileModel model = MSpecFileModel.build(text);
+        List<String> names = new ArrayList<>();
+        List<String> typeNames = new ArrayList<>();
+        int[] offsets = new int[16];
+        byte[] kinds = new byte[16];
+
+        MSpecHighlightingLexer lexer = new MSpecHighlightingLexer();
+        lexer.start(text, 0, text.length(), MSpecLexerBase.STATE_DEFAULT);
+        int depth = 0;
+        int parenDepth = 0;
+        boolean enumBlock = false;
+        // The type of the field whose name comes next, null for a primitive
+        String dataType = null;
+        // In the parameter list of the type: whether the type of the next parameter has been seen
+        boolean parameterTypeSeen = false;
+        for (IElementType type; (type = lexer.getTokenType()) != null; lexer.advance()) {
+            if (type == MSpecTokenTypes.WHITESPACE || type == MSpecTokenTypes.COMMENT
+                    || (lexer.getState() & MSpecLexerBase.STATE_EXPRESSION) != 0) {
+                continue;
+            }
+            int start = lexer.getTokenStart();
+            int end = lexer.getTokenEnd();
+            if (type != MSpecTokenTypes.IDENTIFIER && type != MSpecTokenTypes.ARRAY_LOOP_TYPE
+                    && !MSpecTokenSets.KEYWORDS.contains(type)) {
+                if (end - start == 1) {
+                    char c = text.charAt(start);
+                    if (c == '[') {
+                        depth++;
+                        parenDepth = 0;
+                    } else if (c == ']') {
+                        depth--;
+                        parenDepth = 0;
+                    } else if (c == '(') {
+                        parenDepth++;
+                        parameterTypeSeen = false;
+                    } else if (c == ')') {
+                        parenDepth--;
+                    } else if (c == ',') {
+                        parameterTypeSeen = false;
+                    }
+                }
+                continue;
+            }
+
+            String word = text.subSequence(start, end).toString();
+            Kind kind = null;
+            if (depth == 1 && parenDepth == 1) {
+                // [type Name(uint 8 length, Header header)
+                if (parameterTypeSeen) {
+                    kind = Kind.PARAMETER;
+                    parameterTypeSeen = false;
+                } else {
+                    dataType = type == MSpecTokenTypes.PRIMITIVE_TYPE ? null : word;
+                    parameterTypeSeen = true;
+                }
+            } else if (parenDepth == 0) {
+                switch (model.getRole(start)) {
+                    case DEFINITION_KEYWORD:
+                        enumBlock = depth == 1 && word.equals("enum");
+                        break;
+                    case DATA_TYPE:
+                        dataType = null;
+                        break;
+                    case TYPE_REFERENCE:
+                        dataType = word;
+                        break;
+                    case FIELD_NAME:
+                        kind = Kind.FIELD;
+                        break;
+                    case CASE_NAME:
+                        // ['0x01' REQUEST: a constant of an enum, or a case of a typeSwitch
+                        if (enumBlock) {
+                            kind = Kind.ENUM_CONSTANT;
+                            dataType = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (kind == null) {
+                continue;
+            }
+            int size = names.size();
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                kinds = Arrays.copyOf(kinds, size * 2);
+            }
+            names.add(word);
+            typeNames.add(dataType);
+            offsets[size] = start;
+            kinds[size] = (byte) kind.ordinal();
+        }
+        int size = names.size();
+        return new MSpecFieldTable(block, names.toArray(String[]::new), typeNames.toArray(String[]::new),
+                Arrays.copyOf(offsets, size), Arrays.copyOf(kinds, size));
+    }
+}
@@ -0,0 +1,283 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.toddysoft.mspec.MSpecHighlightingLexer;
+import com.toddysoft.mspec.MSpecLexerBase;
+import com.toddysoft.mspec.MSpecTokenSets;
+import com.toddysoft.mspec.MSpecTokenTypes;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The role of every word (identifier, keyword or primitive type) of an MSpec file, found in one pass
+ * with the highlighting lexer and cached per file revision.
+ * <p>
+ * The annotator, completion and goto declaration ask for the role at an offset instead of matching
+ * regexes against the text around it, so a highlighting pass is linear in the number of tokens.
+ * <p>
+ * Roles follow the shape of a bracketed header:
+ * <ul>
+ *   <li>{@code [type Name ...}, {@code [discriminatedType Name ...}, {@code [dataIo Name ...} and
+ *       {@code [enum uint 8 Name ...} at the top level define a type,</li>
+ *   <li>{@code [<field keyword> <data type> [size] <field name> [loop type] ...} inside of them
+ *       declare a field,</li>
+ *   <li>{@code ['value' Name ...} and {@code ['value' *Name ...} are typeSwitch cases or enum values,</li>
+ *   <li>{@code [typeSwitch discriminator, ...} names fields of the enclosing type.</li>
+ * </ul>
+ * Words inside tick-quoted expressions and parentheses (type arguments, parameters) only get
+ * {@link Role#EXPRESSION} or {@link Role#OTHER}.
+ */
+public final class MSpecFileModel {
+
+    public enum Role {
+        OTHER,
+        EXPRESSION,
+        DEFINITION_KEYWORD,
+        FIELD_KEYWORD,
+        DEFINITION_NAME,
+        DATA_TYPE,
+        TYPE_REFERENCE,
+        FIELD_NAME,
+        LOOP_TYPE,
+        CASE_NAME,
+        FIELD_REFERENCE
+    }
+
+    /**
+     * The primitive data types, in the order completion offers them. Only the lowercase spelling is
+     * primitive; {@code UINT} is a type or case name.
+     */
+    public static final Set<String> PRIMITIVE_TYPES = Collections.unmodifiableSet(new LinkedHashSet<>(List.of(
+            "bit", "byte", "int", "uint", "vint", "vuint",
+            "float", "ufloat", "string", "vstring",
+            "time", "date", "dateTime"
+    )));
+
+    // Field types whose first argument is a type reference
+    static final Set<String> FIELD_TYPES_WITH_TYPE_REF = Set.of(
+            "abstract", "array", "assert", "const", "discriminator",
+            "enum", "implicit", "manualArray", "manual", "optional",
+            "peek", "simple", "virtual"
+    );
+
+    // Field types whose first argument is a data type: the above plus those that only take primitives.
+    // Not state, which is followed by the field name right away, nor batchSet, which has attributes only.
+    private static final Set<String> FIELD_TYPES_WITH_DATA_TYPE = Set.of(
+            "abstract", "array", "assert", "checksum", "const", "discriminator",
+            "enum", "implicit", "manualArray", "manual", "optional", "padding",
+            "peek", "reserved", "simple", "unknown", "virtual"
+    );
+
+    private static final Set<String> TYPE_DEFINITION_KEYWORDS = Set.of("type", "discriminatedType", "dataIo");
+
+    private static final Role[] ROLES = Role.values();
+    // Set in the role byte of a word that is directly followed by a number, like the size of uint 8
+    private static final int SIZE_FOLLOWS = 0x80;
+    private static final int ROLE_MASK = 0x7F;
+
+    // What the next word outside of expressions and parentheses is
+    private static final int EXPECT_NOTHING = 0;
+    private static final int EXPECT_KEYWORD = 1;
+    private static final int EXPECT_CASE_NAME = 2;
+    private static final int EXPECT_DEFINITION_NAME = 3;
+    private static final int EXPECT_ENUM_TYPE = 4;
+    private static final int EXPECT_DATA_TYPE = 5;
+    private static final int EXPECT_FIELD_NAME = 6;
+    private static final int EXPECT_LOOP_TYPE = 7;
+    private static final int EXPECT_FIELD_REFERENCES = 8;
+
+    private final int[] starts;
+    private final byte[] roles;
+
+    private MSpecFileModel(int[] starts, byte[] roles) {
+        this.starts = starts;
+        this.roles = roles;
+    }
+
+    /**
+     * The model of the file's current text.
+     */
+    public static MSpecFileModel getInstance(PsiFile file) {
+        return CachedValuesManager.getCachedValue(file, () -> CachedValueProvider.Result.create(
+                build(file.getViewProvider().getContents()),
+                file));
+    }
+
+    /**
+     * The role of the word starting at the offset; {@link Role#OTHER} if no word starts there.
+     */
+    public Role getRole(int offset) {
+        int index = Arrays.binarySearch(starts, offset);
+        return index >= 0 ? ROLES[roles[index] & ROLE_MASK] : Role.OTHER;
+    }
+
+    /**
+     * Whether the word starting at the offset is directly followed by a number, e.g. the size of a
+     * sized primitive type.
+     */
+    public boolean isFollowedByNumber(int offset) {
+        int index = Arrays.binarySearch(starts, offset);
+        return index >= 0 && (roles[index] & SIZE_FOLLOWS) != 0;
+    }
+
+    /**
+     * Whether the text is a plain identifier, {@code [A-Za-z][A-Za-z0-9_-]*}. Checked character by
+     * character, as it runs for every word the annotator sees.
+     */
+    public static boolean isIdentifier(CharSequence text) {
+        if (text.length() == 0 || !isAsciiLetter(text.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!isAsciiLetter(c) && !(c >= '0' && c <= '9') && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Builds the model in a single pass over the tokens. The state between two words is a handful
+     * of ints, so there is no backtracking and no look-behind window, whatever the input.
+     */
+    public static MSpecFileModel build(CharSequence text) {
+        int[] starts = new int[64];
+        byte[] roles = new byte[64];
+        int size = 0;
+
+        MSpecHighlightingLexer lexer = new MSpecHighlightingLexer();
+        lexer.start(text, 0, text.length(), MSpecLexerBase.STATE_DEFAULT);
+        int depth = 0;
+        int parenDepth = 0;
+        int expect = EXPECT_NOTHING;
+        String keyword = null;
+        // Index of the previous token if it was a word, else -1
+        int previousWord = -1;
+        for (IElementType type; (type = lexer.getTokenType()) != null; lexer.advance()) {
+            if (type == MSpecTokenTypes.WHITESPACE || type == MSpecTokenTypes.COMMENT) {
+                continue;
+            }
+            int start = lexer.getTokenStart();
+            int end = lexer.getTokenEnd();
+            boolean inExpression = (lexer.getState() & MSpecLexerBase.STATE_EXPRESSION) != 0;
+
+            if (type == MSpecTokenTypes.NUMBER && previousWord >= 0) {
+                roles[previousWord] |= (byte) SIZE_FOLLOWS;
+            }
+            previousWord = -1;
+
+            if (!isWord(type)) {
+                if (!inExpression && end - start == 1) {
+                    char c = text.charAt(start);
+                    if (c == '[') {
+                        depth++;
+                        parenDepth = 0;
+                        expect = EXPECT_KEYWORD;
+                    } else if (c == ']') {
+                        depth = Math.max(0, depth - 1);
+                        parenDepth = 0;
+                        expect = EXPECT_NOTHING;
+                    } else if (c == '(') {
+                        parenDepth++;
+                    } else if (c == ')') {
+                        parenDepth = Math.max(0, parenDepth - 1);
+                    } else if ((c == '\'' || c == '*') && expect == EXPECT_KEYWORD) {
+                        // ['value' Name, ['a', 'b' *Name or [* *Default
+                        expect = EXPECT_CASE_NAME;
+                    }
+                }
+                continue;
+            }
+
+            Role role = Role.OTHER;
+            if (inExpression) {
+                role = Role.EXPRESSION;
+            } else if (parenDepth == 0) {
+                String word = text.subSequence(start, end).toString();
+                boolean primitive = type == MSpecTokenTypes.PRIMITIVE_TYPE;
+                switch (expect) {
+                    case EXPECT_KEYWORD:
+                        keyword = word;
+                        if (depth == 1 && TYPE_DEFINITION_KEYWORDS.contains(word)) {
+                            role = Role.DEFINITION_KEYWORD;
+                            expect = EXPECT_DEFINITION_NAME;
+                        } else if (depth == 1 && word.equals("enum")) {
+                            role = Role.DEFINITION_KEYWORD;
+                            expect = EXPECT_ENUM_TYPE;
+                        } else if (depth > 1 && word.equals("typeSwitch")) {
+                            role = Role.FIELD_KEYWORD;
+                            expect = EXPECT_FIELD_REFERENCES;
+                        } else if (depth > 1 && word.equals("state")) {
+                            // [state name
+                            role = Role.FIELD_KEYWORD;
+                            expect = EXPECT_FIELD_NAME;
+                        } else {
+                            role = depth == 1 ? Role.DEFINITION_KEYWORD : Role.FIELD_KEYWORD;
+                            expect = FIELD_TYPES_WITH_DATA_TYPE.contains(word) ? EXPECT_DATA_TYPE : EXPECT_NOTHING;
+                        }
+                        break;
+                    case EXPECT_CASE_NAME:
+                        role = Role.CASE_NAME;
+                        expect = EXPECT_NOTHING;
+                        break;
+                    case EXPECT_DEFINITION_NAME:
+                        role = Role.DEFINITION_NAME;
+                        expect = EXPECT_NOTHING;
+                        break;
+                    case EXPECT_ENUM_TYPE:
+                        // [enum uint 8 Name or just [enum Name
+                        role = primitive ? Role.DATA_TYPE : Role.DEFINITION_NAME;
+                        expect = primitive ? EXPECT_DEFINITION_NAME : EXPECT_NOTHING;
+                        break;
+                    case EXPECT_DATA_TYPE:
+                        role = !primitive && depth > 1 && FIELD_TYPES_WITH_TYPE_REF.contains(keyword)
+                                ? Role.TYPE_REFERENCE : Role.DATA_TYPE;
+                        expect = EXPECT_FIELD_NAME;
+                        break;
+                    case EXPECT_FIELD_NAME:
+                        role = Role.FIELD_NAME;
+                        expect = "array".equals(keyword) || "manualArray".equals(keyword)
+                                ? EXPECT_LOOP_TYPE : EXPECT_NOTHING;
+                        break;
+                    case EXPECT_LOOP_TYPE:
+                        role = Role.LOOP_TYPE;
+                        expect = EXPECT_NOTHING;
+                        break;
+                    case EXPECT_FIELD_REFERENCES:
+                        // [typeSwitch messageType, length: every word up to the first case
+                        role = Role.FIELD_REFERENCE;
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                roles = Arrays.copyOf(roles, size * 2);
+            }
+            starts[size] = start;
+            roles[size] = (byte) role.ordinal();
+            previousWord = size;
+            size++;
+        }
+        return new MSpecFileModel(Arrays.copyOf(starts, size), Arrays.copyOf(roles, size));
+    }
+
+    private static boolean isWord(IElementType type) {
+        return type == MSpecTokenTypes.IDENTIFIER || type == MSpecTokenTypes.ARRAY_LOOP_TYPE
+                || MSpecTokenSets.KEYWORDS.contains(type);
+    }
+}
@@ -0,0 +1,256 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.openapi.util.SimpleModificationTracker;
+import com.intellij.openapi.util.UserDataHolderEx;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.psi.PsiDirectory;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiTreeChangeAdapter;
+import com.intellij.psi.PsiTreeChangeEvent;
+import com.toddysoft.mspec.psi.MSpecFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Modification tracker that only counts changes to MSpec files, for caches that would otherwise
+ * depend on {@link com.intellij.psi.util.PsiModificationTracker#MODIFICATION_COUNT} and be dropped
+ * on every edit of a Java, Kotlin or XML file.
+ * <p>
+ * There are two levels:
+ * <ul>
+ *   <li>{@link #getFileSetTracker()} changes when .mspec files are created, deleted, moved, renamed
+ *       or copied, or when a directory containing them is.</li>
+ *   <li>{@link #forDirectory(VirtualFile)} additionally changes when the content of a .mspec file
+ *       directly in that directory (package) changes, on disk or in the editor.</li>
+ * </ul>
+ * A cache over the types of some packages depends on the trackers of just those directories, so
+ * editing a file only invalidates the caches of the files that can see its types.
+ * <p>
+ * Within a file, {@link #forBlock(PsiElement)} changes when anything inside one top-level block of
+ * the file changes, for caches of a block that must survive edits of the other blocks.
+ */
+@Service(Service.Level.PROJECT)
+public final class MSpecModificationTracker implements ModificationTracker, Disposable {
+    private static final String EXTENSION = ".mspec";
+    private static final Key<SimpleModificationTracker> BLOCK_TRACKER = Key.create("mspec.block.tracker");
+
+    private final SimpleModificationTracker fileSet = new SimpleModificationTracker();
+    private final SimpleModificationTracker content = new SimpleModificationTracker();
+    private final Map<VirtualFile, SimpleModificationTracker> directories = new ConcurrentHashMap<>();
+    private final Project project;
+
+    public MSpecModificationTracker(@NotNull Project project) {
+        this.project = project;
+        project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void before(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    // Deleting, moving or renaming a directory takes the .mspec files in it along
+                    VirtualFile file = event.getFile();
+                    if (file == null || !file.isDirectory()) {
+                        continue;
+                    }
+                    if (event instanceof VFileDeleteEvent) {
+                        // The trackers of deleted directories are not asked for again
+                        if (directories.keySet().removeIf(known -> VfsUtilCore.isAncestor(file, known, false))) {
+                            fileSet.incModificationCount();
+                        }
+                    } else if ((event instanceof VFileMoveEvent
+                            || event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename())
+                            && containsKnownDirectory(file)) {
+                        fileSet.incModificationCount();
+                    }
+                }
+            }
+
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    vfsChanged(event);
+                }
+            }
+        });
+        PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+            @Override
+            public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(event);
+            }
+
+            @Override
+            public void childAdded(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(event);
+            }
+
+            @Override
+            public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(event);
+            }
+
+            @Override
+            public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(event);
+            }
+
+            @Override
+            public void childMoved(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(event);
+            }
+        }, this);
+    }
+
+    public static MSpecModificationTracker getInstance(@NotNull Project project) {
+        return project.getService(MSpecModificationTracker.class);
+    }
+
+    /**
+     * Changes on every change to any MSpec file or to the set of MSpec files.
+     */
+    @Override
+    public long getModificationCount() {
+        return fileSet.getModificationCount() + content.getModificationCount();
+    }
+
+    public ModificationTracker getFileSetTracker() {
+        return fileSet;
+    }
+
+    /**
+     * Changes when the set of MSpec files changes or one of the MSpec files in the directory does.
+     */
+    public ModificationTracker forDirectory(@NotNull VirtualFile directory) {
+        SimpleModificationTracker directoryTracker =
+                directories.computeIfAbsent(directory, d -> new SimpleModificationTracker());
+        return () -> fileSet.getModificationCount() + directoryTracker.getModificationCount();
+    }
+
+    /**
+     * Changes when the PSI inside the top-level block of a physical MSpec file changes. A block that
+     * is replaced as a whole, e.g. when it is reparsed, is a new element with a tracker of its own.
+     */
+    public ModificationTracker forBlock(@NotNull PsiElement block) {
+        SimpleModificationTracker tracker = block.getUserData(BLOCK_TRACKER);
+        if (tracker == null) {
+            tracker = new SimpleModificationTracker();
+            if (block instanceof UserDataHolderEx holder) {
+                tracker = holder.putUserDataIfAbsent(BLOCK_TRACKER, tracker);
+            } else {
+                block.putUserData(BLOCK_TRACKER, tracker);
+            }
+        }
+        return tracker;
+    }
+
+    private void vfsChanged(VFileEvent event) {
+        if (event instanceof VFileContentChangeEvent contentEvent) {
+            if (isMSpec(contentEvent.getFile().getName())) {
+                contentChanged(contentEvent.getFile().getParent());
+            }
+        } else if (event instanceof VFileCreateEvent createEvent) {
+            // A new directory may come with .mspec files that get no events of their own
+            if (createEvent.isDirectory() ? isPackageWithMSpecFiles(createEvent.getFile())
+                    : isMSpec(createEvent.getChildName())) {
+                fileSet.incModificationCount();
+            }
+        } else if (event instanceof VFileDeleteEvent || event instanceof VFileMoveEvent) {
+            if (isMSpec(event.getPath())) {
+                fileSet.incModificationCount();
+            }
+        } else if (event instanceof VFileCopyEvent copyEvent) {
+            if (copyEvent.getFile().isDirectory() ? isPackageWithMSpecFiles(copyEvent.findCreatedFile())
+                    : isMSpec(copyEvent.getNewChildName())) {
+                fileSet.incModificationCount();
+            }
+        } else if (event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename()) {
+            if (isMSpec(String.valueOf(propertyEvent.getOldValue()))
+                    || isMSpec(String.valueOf(propertyEvent.getNewValue()))) {
+                fileSet.incModificationCount();
+            }
+        }
+    }
+
+    private void psiChanged(PsiTreeChangeEvent event) {
+        PsiFile file = event.getFile();
+        if (file instanceof MSpecFile && file.isPhysical()) {
+            VirtualFile virtualFile = file.getVirtualFile();
+            contentChanged(virtualFile != null ? virtualFile.getParent() : null);
+            blockChanged(event.getParent());
+        } else if (file == null && event.getParent() instanceof PsiDirectory
+                && (event.getChild() instanceof MSpecFile || event.getOldChild() instanceof MSpecFile
+                || event.getNewChild() instanceof MSpecFile)) {
+            fileSet.incModificationCount();
+        }
+    }
+
+    private void contentChanged(VirtualFile directory) {
+        content.incModificationCount();
+        SimpleModificationTracker directoryTracker = directory != null ? directories.get(directory) : null;
+        if (directoryTracker != null) {
+            directoryTracker.incModificationCount();
+        }
+    }
+
+    /**
+     * Bumps the tracker of the top-level block around the changed element, if it has one.
+     */
+    private static void blockChanged(PsiElement element) {
+        while (element != null && !(element instanceof PsiFile) && !(element.getParent() instanceof PsiFile)) {
+            element = element.getParent();
+        }
+        if (element == null || element instanceof PsiFile) {
+            return;
+        }
+        SimpleModificationTracker tracker = element.getUserData(BLOCK_TRACKER);
+        if (tracker != null) {
+            tracker.incModificationCount();
+        }
+    }
+
+    private boolean containsKnownDirectory(VirtualFile directory) {
+        for (VirtualFile known : directories.keySet()) {
+            if (VfsUtilCore.isAncestor(directory, known, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a new directory is below a source or library root and has .mspec files somewhere
+     * inside; anywhere else its files are not part of any package that caches could have seen.
+     */
+    private boolean isPackageWithMSpecFiles(VirtualFile directory) {
+        if (directory == null || !directory.isValid() || MSpecPackageUtil.getPackageRoot(project, directory) == null) {
+            return false;
+        }
+        // Stops at the first .mspec file
+        return !VfsUtilCore.processFilesRecursively(directory, file -> file.isDirectory() || !isMSpec(file.getName()));
+    }
+
+    private static boolean isMSpec(String name) {
+        return name.endsWith(EXTENSION);
+    }
+
+    @Override
+    public void dispose() {
+    }
+}
@@ -0,0 +1,386 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.IndexNotReadyException;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.ProjectScope;
+import com.intellij.util.messages.MessageBusConnection;
+import com.toddysoft.mspec.MSpecFileType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Map from logical package ({@link MSpecPackageUtil.PackageKey}) to the .mspec files in it, over
+ * all source roots and libraries of the project.
+ * <p>
+ * The map is built when it is first needed, from the .mspec files of the project content and of the
+ * libraries as found by {@link FileTypeIndex}, so neither the source roots nor jars are walked. In
+ * dumb mode, the source roots are walked instead, and library files are not known; such a map is
+ * dropped when dumb mode ends. With many source roots, the roots are walked in parallel and their
+ * files added in root order, so the map is the same as after a walk on one thread. Building the map
+ * does not hold the lock of the service, so VFS events and lookups of other threads don't wait for
+ * it; a map that events or a root change have made stale meanwhile is used for the lookup that
+ * built it, but not kept.
+ * <p>
+ * After that it is updated from VFS events, without walking anything: files and directories that
+ * are deleted, moved or renamed are taken out before the change, and the files taken out for a move
+ * or rename are put back in after it, as are created and copied files. A directory that is created
+ * or copied into a source or library root comes with files that get no events of their own, so it
+ * drops the map, like a change of the project roots does, and the next lookup builds it again.
+ */
+@Service(Service.Level.PROJECT)
+public final class MSpecPackageFiles implements Disposable {
+    private static final String EXTENSION = ".mspec";
+    // Fewer roots than this are walked on the calling thread
+    private static final int PARALLEL_ROOTS = 8;
+
+    private final Project project;
+    // Both null until first needed and after a root change; guarded by this
+    private Map<MSpecPackageUtil.PackageKey, Set<VirtualFile>> packages;
+    private Map<VirtualFile, MSpecPackageUtil.PackageKey> keys;
+    // Whether the map was built from the index, which also knows the library files
+    private boolean indexed;
+    // Counts VFS events and resets, so a build can tell whether its map is still current; guarded by this
+    private long changes;
+
+    public MSpecPackageFiles(@NotNull Project project) {
+        this.project = project;
+        MessageBusConnection connection = project.getMessageBus().connect(this);
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            // The files taken out before a move or rename, to be put back in after it
+            private final List<VirtualFile> moved = new ArrayList<>();
+            // Directories moved from outside of any source or library root, which may move into one
+            private final List<VirtualFile> movedIn = new ArrayList<>();
+
+            @Override
+            public void before(@NotNull List<? extends VFileEvent> events) {
+                moved.clear();
+                movedIn.clear();
+                for (VFileEvent event : events) {
+                    VirtualFile file = event.getFile();
+                    if (event instanceof VFileDeleteEvent) {
+                        removeAll(file);
+                    } else if (event instanceof VFileMoveEvent
+                            || event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename()) {
+                        moved.addAll(removeAll(file));
+                        if (file.isDirectory() && MSpecPackageUtil.getPackageRoot(project, file) == null) {
+                            movedIn.add(file);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    if (event instanceof VFileCreateEvent) {
+                        added(event.getFile());
+                    } else if (event instanceof VFileCopyEvent copyEvent) {
+                        added(copyEvent.findCreatedFile());
+                    } else if ((event instanceof VFileMoveEvent
+                            || event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename())
+                            && !event.getFile().isDirectory()) {
+                        // A file may get the .mspec extension, or move into a source root
+                        added(event.getFile());
+                    }
+                }
+                addAll(moved);
+                for (VirtualFile directory : movedIn) {
+                    added(directory);
+                }
+                moved.clear();
+                movedIn.clear();
+            }
+        });
+        connection.subscribe(DumbService.DUMB_MODE, new DumbService.DumbModeListener() {
+            @Override
+            public void exitDumbMode() {
+                resetWithoutLibraries();
+            }
+        });
+        connection.subscribe(ModuleRootListener.TOPIC, new ModuleRootListener() {
+            @Override
+            public void rootsChanged(@NotNull ModuleRootEvent event) {
+                reset();
+            }
+        });
+    }
+
+    public static MSpecPackageFiles getInstance(@NotNull Project project) {
+        return project.getService(MSpecPackageFiles.class);
+    }
+
+    /**
+     * The .mspec files of a package that lies in source or library roots, in the order they became
+     * known.
+     */
+    public List<VirtualFile> getFiles(@NotNull MSpecPackageUtil.PackageKey key) {
+        return query(packages -> {
+            Set<VirtualFile> files = packages.get(key);
+            return files != null ? List.copyOf(files) : List.of();
+        });
+    }
+
+    /**
+     * All packages in source or library roots that contain .mspec files.
+     */
+    public List<MSpecPackageUtil.PackageKey> getPackages() {
+        return query(packages -> List.copyOf(packages.keySet()));
+    }
+
+    /**
+     * Applies the query to the map under the lock, building the map first if there is none. The
+     * query must copy what it returns.
+     */
+    private <T> T query(Function<Map<MSpecPackageUtil.PackageKey, Set<VirtualFile>>, T> query) {
+        long stamp;
+        synchronized (this) {
+            if (packages != null) {
+                return query.apply(packages);
+            }
+            stamp = changes;
+        }
+        Map<MSpecPackageUtil.PackageKey, Set<VirtualFile>> builtPackages = new HashMap<>();
+        Map<VirtualFile, MSpecPackageUtil.PackageKey> builtKeys = new HashMap<>();
+        boolean builtFromIndex = build(builtPackages, builtKeys);
+        synchronized (this) {
+            if (packages == null && changes == stamp) {
+                packages = builtPackages;
+                keys = builtKeys;
+                indexed = builtFromIndex;
+            }
+            return query.apply(packages != null ? packages : builtPackages);
+        }
+    }
+
+    /**
+     * Fills the maps from the index, or while indexes are not ready, from a walk of the source
+     * roots. Returns whether the index was used. A cancelled build throws, and its maps are dropped.
+     */
+    private boolean build(Map<MSpecPackageUtil.PackageKey, Set<VirtualFile>> packages,
+                          Map<VirtualFile, MSpecPackageUtil.PackageKey> keys) {
+        List<VirtualFile> indexedFiles = getIndexedFiles();
+        if (indexedFiles != null) {
+            for (VirtualFile file : indexedFiles) {
+                ProgressManager.checkCanceled();
+                add(file, packages, keys);
+            }
+            return true;
+        }
+        for (List<VirtualFile> files : collectFromSourceRoots()) {
+            for (VirtualFile file : files) {
+                add(file, packages, keys);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The .mspec files of the project content and then of the libraries, or null while indexes are
+     * not ready. Dumb mode can start at any time outside of a smart-mode read action, so the index
+     * may refuse the query even after a check that the project is smart.
+     * <p>
+     * The index reports files in no particular order, so the content files are sorted by source
+     * root and path, the order of the walk, and the library files by path.
+     */
+    private @Nullable List<VirtualFile> getIndexedFiles() {
+        if (DumbService.isDumb(project)) {
+            return null;
+        }
+        Collection<VirtualFile> contentFiles;
+        Collection<VirtualFile> libraryFiles;
+        try {
+            contentFiles = FileTypeIndex.getFiles(MSpecFileType.INSTANCE, ProjectScope.getContentScope(project));
+            libraryFiles = FileTypeIndex.getFiles(MSpecFileType.INSTANCE, ProjectScope.getLibrariesScope(project));
+        } catch (IndexNotReadyException e) {
+            return null;
+        }
+        Map<VirtualFile, Integer> rootOrder = new HashMap<>();
+        for (VirtualFile root : MSpecPackageUtil.getAllSourceRoots(project)) {
+            rootOrder.putIfAbsent(root, rootOrder.size());
+        }
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        List<VirtualFile> result = new ArrayList<>(contentFiles);
+        result.sort(Comparator.<VirtualFile>comparingInt(
+                        file -> rootOrder.getOrDefault(fileIndex.getSourceRootForFile(file), Integer.MAX_VALUE))
+                .thenComparing(VirtualFile::getPath));
+        List<VirtualFile> sortedLibraryFiles = new ArrayList<>(libraryFiles);
+        sortedLibraryFiles.sort(Comparator.comparing(VirtualFile::getPath));
+        result.addAll(sortedLibraryFiles);
+        return result;
+    }
+
+    /**
+     * The .mspec files of every source root, one list per root in root order. Walks the roots in
+     * parallel if there are many and the calling thread has a progress indicator.
+     */
+    List<List<VirtualFile>> collectFromSourceRoots() {
+        List<VirtualFile> roots = new ArrayList<>();
+        for (VirtualFile root : MSpecPackageUtil.getAllSourceRoots(project)) {
+            if (root.isValid()) {
+                roots.add(root);
+            }
+        }
+        List<List<VirtualFile>> result = new ArrayList<>(roots.size());
+        ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+        // Without an indicator to cancel the workers by, the roots are walked on the calling thread
+        if (roots.size() < PARALLEL_ROOTS || indicator == null) {
+            for (VirtualFile root : roots) {
+                result.add(collect(root));
+            }
+            return result;
+        }
+        // Each worker only reads the VFS and fills its own slot
+        List<Integer> indices = new ArrayList<>(roots.size());
+        for (int i = 0; i < roots.size(); i++) {
+            indices.add(i);
+            result.add(null);
+        }
+        JobLauncher.getInstance().invokeConcurrentlyUnderProgress(indices, indicator, i -> {
+            result.set(i, collect(roots.get(i)));
+            return true;
+        });
+        return result;
+    }
+
+    private synchronized void reset() {
+        packages = null;
+        keys = null;
+        indexed = false;
+        changes++;
+    }
+
+    /**
+     * Drops a map that was not built from the index, including one that is being built.
+     */
+    private synchronized void resetWithoutLibraries() {
+        if (!indexed) {
+            reset();
+        }
+    }
+
+    /**
+     * Puts a created or copied file in, or for a directory in a source or library root, drops the map.
+     */
+    private void added(VirtualFile file) {
+        if (file == null || !file.isValid()) {
+            return;
+        }
+        if (!file.isDirectory()) {
+            addAll(List.of(file));
+        } else if (MSpecPackageUtil.getPackageRoot(project, file) != null) {
+            reset();
+        }
+    }
+
+    private synchronized void addAll(List<VirtualFile> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        changes++;
+        if (packages == null) {
+            return;
+        }
+        for (VirtualFile file : files) {
+            if (file.isValid()) {
+                add(file, packages, keys);
+            }
+        }
+    }
+
+    private static List<VirtualFile> collect(VirtualFile directory) {
+        List<VirtualFile> files = new ArrayList<>();
+        VfsUtilCore.visitChildrenRecursively(directory, new VirtualFileVisitor<Void>() {
+            @Override
+            public boolean visitFile(@NotNull VirtualFile file) {
+                ProgressManager.checkCanceled();
+                if (!file.isDirectory() && file.getName().endsWith(EXTENSION)) {
+                    files.add(file);
+                }
+                return true;
+            }
+        });
+        return files;
+    }
+
+    private void add(VirtualFile file, Map<MSpecPackageUtil.PackageKey, Set<VirtualFile>> packages,
+                     Map<VirtualFile, MSpecPackageUtil.PackageKey> keys) {
+        VirtualFile parent = file.getParent();
+        if (!file.getName().endsWith(EXTENSION) || parent == null || keys.containsKey(file)
+                || MSpecPackageUtil.getPackageRoot(project, parent) == null) {
+            return;
+        }
+        MSpecPackageUtil.PackageKey key = MSpecPackageUtil.getPackageKey(project, parent);
+        keys.put(file, key);
+        packages.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(file);
+    }
+
+    /**
+     * Takes out the file, or all known files in the directory, and returns the files taken out.
+     */
+    private synchronized List<VirtualFile> removeAll(VirtualFile file) {
+        changes++;
+        if (packages == null || file == null) {
+            return List.of();
+        }
+        List<VirtualFile> contained = new ArrayList<>();
+        if (!file.isDirectory()) {
+            contained.add(file);
+        } else {
+            for (VirtualFile known : keys.keySet()) {
+                if (VfsUtilCore.isAncestor(file, known, false)) {
+                    contained.add(known);
+                }
+            }
+        }
+        contained.removeIf(known -> !remove(known));
+        return contained;
+    }
+
+    private boolean remove(VirtualFile file) {
+        MSpecPackageUtil.PackageKey key = keys.remove(file);
+        if (key == null) {
+            return false;
+        }
+        Set<VirtualFile> files = packages.get(key);
+        files.remove(file);
+        if (files.isEmpty()) {
+            packages.remove(key);
+        }
+        return true;
+    }
+
+    @Override
+    public void dispose() {
+    }
+}
@@ -0,0 +1,163 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootModificationTracker;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One immutable symbol table per logical package (see {@link MSpecPackageUtil#getPackageKey}),
+ * shared by every MSpec file in it.
+ * <p>
+ * A table holds the types defined by all .mspec files of the package. It is computed once per
+ * change of those files and not once per file, and every file of the package gets the same instance.
+ * <p>
+ * The first computation of a table may have to load the text of many files. It checks for
+ * cancellation between files, and {@link #hasUpToDateTable} tells callers on the highlighting thread
+ * whether a table is at hand, so they can leave the computation to a background read action instead.
+ * In a package of many files, the files are read in parallel and their types merged in file order,
+ * so the table is the same as when reading them one by one.
+ */
+@Service(Service.Level.PROJECT)
+public final class MSpecPackageSymbols {
+    // Packages with fewer files than this are read on the calling thread
+    private static final int PARALLEL_FILES = 8;
+
+    private final Project project;
+    private final Map<MSpecPackageUtil.PackageKey, CachedValue<MSpecTypeTable>> tables = new ConcurrentHashMap<>();
+    // File set and root stamps when the tables were last pruned
+    private final AtomicLong prunedStamp = new AtomicLong(-1);
+
+    public MSpecPackageSymbols(@NotNull Project project) {
+        this.project = project;
+    }
+
+    public static MSpecPackageSymbols getInstance(@NotNull Project project) {
+        return project.getService(MSpecPackageSymbols.class);
+    }
+
+    /**
+     * Types defined in the package of the given directory. Offsets are within the defining file.
+     */
+    public MSpecTypeTable getTypesInPackage(@NotNull VirtualFile directory) {
+        return getTypesInPackage(MSpecPackageUtil.getPackageKey(project, directory));
+    }
+
+    /**
+     * Types defined in the given package.
+     */
+    public MSpecTypeTable getTypesInPackage(@NotNull MSpecPackageUtil.PackageKey key) {
+        prune();
+        return tables.computeIfAbsent(key, k -> CachedValuesManager.getManager(project).createCachedValue(
+                () -> computeTable(k), false)).getValue();
+    }
+
+    /**
+     * Whether the table of the package of the given directory is computed and up to date, so
+     * getting it now costs nothing.
+     */
+    public boolean hasUpToDateTable(@NotNull VirtualFile directory) {
+        prune();
+        CachedValue<MSpecTypeTable> table = tables.get(MSpecPackageUtil.getPackageKey(project, directory));
+        return table != null && table.hasUpToDateValue();
+    }
+
+    /**
+     * Drops all tables once the set of MSpec files or the project roots have changed. Every table
+     * depends on both, so none of them is up to date any more, and packages that are gone (deleted
+     * or moved directories, removed roots) must not keep theirs forever.
+     */
+    private void prune() {
+        long stamp = MSpecModificationTracker.getInstance(project).getFileSetTracker().getModificationCount()
+                + ProjectRootModificationTracker.getInstance(project).getModificationCount();
+        long pruned = prunedStamp.get();
+        if (pruned != stamp && prunedStamp.compareAndSet(pruned, stamp)) {
+            tables.clear();
+        }
+    }
+
+    /**
+     * What the table of the package depends on: the MSpec files of its directories, the set of MSpec
+     * files, the project roots and dumb mode.
+     */
+    public List<Object> getDependencies(@NotNull MSpecPackageUtil.PackageKey key) {
+        return getDependencies(getValidFiles(key));
+    }
+
+    private List<Object> getDependencies(List<VirtualFile> files) {
+        MSpecModificationTracker tracker = MSpecModificationTracker.getInstance(project);
+        List<Object> dependencies = new ArrayList<>();
+        Set<VirtualFile> directories = new HashSet<>();
+        for (VirtualFile file : files) {
+            if (directories.add(file.getParent())) {
+                dependencies.add(tracker.forDirectory(file.getParent()));
+            }
+        }
+        dependencies.add(tracker.getFileSetTracker());
+        dependencies.add(ProjectRootModificationTracker.getInstance(project));
+        // Outside smart mode the types come from the file text instead of the index
+        dependencies.add(DumbService.getInstance(project).getModificationTracker());
+        return dependencies;
+    }
+
+    private List<VirtualFile> getValidFiles(MSpecPackageUtil.PackageKey key) {
+        List<VirtualFile> files = new ArrayList<>();
+        for (VirtualFile file : MSpecPackageUtil.getPackageFiles(project, key)) {
+            if (file.isValid()) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private CachedValueProvider.Result<MSpecTypeTable> computeTable(MSpecPackageUtil.PackageKey key) {
+        List<VirtualFile> files = getValidFiles(key);
+        MSpecTypeTable.Builder types = new MSpecTypeTable.Builder();
+        for (MSpecTypeTable table : getTypeDefinitions(files)) {
+            types.addAll(table);
+        }
+        return CachedValueProvider.Result.create(types.build(), getDependencies(files).toArray());
+    }
+
+    /**
+     * The type definitions of each file, in the order of the files.
+     */
+    private MSpecTypeTable[] getTypeDefinitions(List<VirtualFile> files) {
+        MSpecTypeTable[] result = new MSpecTypeTable[files.size()];
+        ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+        // Without an indicator to cancel the workers by, the files are read on the calling thread
+        if (files.size() < PARALLEL_FILES || indicator == null) {
+            for (int i = 0; i < files.size(); i++) {
+                ProgressManager.checkCanceled();
+                result[i] = MSpecTypeIndex.getTypeDefinitions(project, files.get(i));
+            }
+            return result;
+        }
+        // The workers run in the read action of the calling thread, and each fills its own slot
+        List<Integer> indices = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            indices.add(i);
+        }
+        JobLauncher.getInstance().invokeConcurrentlyUnderProgress(indices, indicator, i -> {
+            result[i] = MSpecTypeIndex.getTypeDefinitions(project, files.get(i));
+            return true;
+        });
+        return result;
+    }
+}
@@ -2,99 +2,139 @@ package com.toddysoft.mspec.util;
 
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.roots.ProjectRootModificationTracker;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiManager;
+import com.intellij.psi.util.CachedValue;
 import com.intellij.psi.util.CachedValueProvider;
 import com.intellij.psi.util.CachedValuesManager;
-import com.intellij.psi.util.PsiModificationTracker;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 /**
  * Utility class for finding related mspec files across source roots based on package structure.
  *
- * Results are cached: per-file via {@link CachedValuesManager} (invalidated on PSI changes or
- * project root structure changes), and the all-source-roots list is cached per project.
+ * The files of a package across source roots and library roots come from {@link MSpecPackageFiles},
+ * which keeps them up to date from VFS events, so a lookup does not walk the roots.
+ *
+ * Results are cached: per-file via {@link CachedValuesManager} (invalidated when mspec files are
+ * added, removed or moved, or the project root structure changes), and the all-source-roots list
+ * is cached per project.
  */
 public class MSpecPackageUtil {
 
+    private static final Key<CachedValue<List<VirtualFile>>> RELATED_FILES = Key.create("mspec.related.files");
+
+    /**
+     * Finds all related mspec files that should be in scope for type resolution, as virtual files:
+     * callers look at them through the indexes, so no PSI is created for them.
+     */
+    public static List<VirtualFile> findRelatedMSpecFiles(PsiFile file) {
+        VirtualFile virtualFile = file.getOriginalFile().getVirtualFile();
+        if (virtualFile == null) {
+            return Collections.emptyList();
+        }
+        return findRelatedMSpecFiles(file.getProject(), virtualFile);
+    }
+
     /**
-     * Finds all related mspec files that should be in scope for type resolution.
-     * Cached against PSI and project root modifications.
+     * {@link #findRelatedMSpecFiles(PsiFile)} for a file that may have no PSI.
+     * Cached against changes to the set of mspec files, project root modifications and dumb mode.
      */
-    public static List<PsiFile> findRelatedMSpecFiles(PsiFile file) {
-        return CachedValuesManager.getCachedValue(file, () -> {
-            List<PsiFile> related = computeRelatedMSpecFiles(file);
+    public static List<VirtualFile> findRelatedMSpecFiles(Project project, VirtualFile file) {
+        return CachedValuesManager.getManager(project).getCachedValue(file, RELATED_FILES, () -> {
+            List<VirtualFile> related = computeRelatedMSpecFiles(project, file);
             return CachedValueProvider.Result.create(
                     Collections.unmodifiableList(related),
-                    PsiModificationTracker.MODIFICATION_COUNT,
-                    ProjectRootModificationTracker.getInstance(file.getProject()));
-        });
+                    MSpecModificationTracker.getInstance(project).getFileSetTracker(),
+                    ProjectRootModificationTracker.getInstance(project),
+                    // Library files are only known to MSpecPackageFiles outside of dumb mode
+                    DumbService.getInstance(project).getModificationTracker());
+        }, false);
     }
 
-    private static List<PsiFile> computeRelatedMSpecFiles(PsiFile file) {
-        List<PsiFile> relatedFiles = new ArrayList<>();
+    private static List<VirtualFile> computeRelatedMSpecFiles(Project project, VirtualFile virtualFile) {
+        List<VirtualFile> relatedFiles = new ArrayList<>();
 
-        VirtualFile virtualFile = file.getVirtualFile();
-        if (virtualFile == null) {
+        if (virtualFile.getParent() == null) {
             return relatedFiles;
         }
+        VirtualFile directory = virtualFile.getParent();
 
-        Project project = file.getProject();
-        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
-        PsiManager psiManager = PsiManager.getInstance(project);
-
-        addSiblingFiles(file, relatedFiles);
+        addSiblingFiles(virtualFile, relatedFiles);
 
-        VirtualFile sourceRoot = fileIndex.getSourceRootForFile(virtualFile);
-        if (sourceRoot == null) {
+        // The same package in the other source roots
+        PackageKey key = getPackageKey(project, directory);
+        if (key.relativePath == null) {
             return relatedFiles;
         }
+        for (VirtualFile other : MSpecPackageFiles.getInstance(project).getFiles(key)) {
+            if (!directory.equals(other.getParent()) && !relatedFiles.contains(other)) {
+                relatedFiles.add(other);
+            }
+        }
+
+        return relatedFiles;
+    }
 
-        String relativePath = getRelativePath(sourceRoot, virtualFile.getParent());
+    /**
+     * The logical package of a directory: its path relative to its source root, shared by the same
+     * directory in every other source root. A directory outside of any source root, or a source root
+     * itself, is a package of its own. Library roots count as source roots, see
+     * {@link #getPackageRoot}.
+     */
+    public static PackageKey getPackageKey(Project project, VirtualFile directory) {
+        String relativePath = getRelativePath(getPackageRoot(project, directory), directory);
         if (relativePath == null || relativePath.isEmpty()) {
-            return relatedFiles;
+            return new PackageKey(null, directory);
         }
+        return new PackageKey(relativePath, null);
+    }
 
-        for (VirtualFile otherRoot : getAllSourceRoots(project)) {
-            if (otherRoot.equals(sourceRoot)) {
-                continue;
-            }
+    /**
+     * The root that package paths below it are relative to: the source root of a file, or for a file
+     * in a library (e.g. a protocol spec shipped inside a jar), its library class root. Null for
+     * files outside of both.
+     */
+    static VirtualFile getPackageRoot(Project project, VirtualFile file) {
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        VirtualFile root = fileIndex.getSourceRootForFile(file);
+        return root != null ? root : fileIndex.getClassRootForFile(file);
+    }
 
-            VirtualFile packageDir = otherRoot.findFileByRelativePath(relativePath);
-            if (packageDir != null && packageDir.isDirectory()) {
-                for (VirtualFile child : packageDir.getChildren()) {
-                    if (child.getName().endsWith(".mspec") && !child.equals(virtualFile)) {
-                        PsiFile psiFile = psiManager.findFile(child);
-                        if (psiFile != null && !relatedFiles.contains(psiFile)) {
-                            relatedFiles.add(psiFile);
-                        }
-                    }
+    /**
+     * The .mspec files making up a package. For a package in source or library roots these come from
+     * {@link MSpecPackageFiles}, otherwise they are the .mspec files of its one directory.
+     */
+    public static List<VirtualFile> getPackageFiles(Project project, PackageKey key) {
+        if (key.relativePath != null) {
+            return MSpecPackageFiles.getInstance(project).getFiles(key);
+        }
+        List<VirtualFile> files = new ArrayList<>();
+        if (key.directory.isValid()) {
+            for (VirtualFile child : key.directory.getChildren()) {
+                if (!child.isDirectory() && child.getName().endsWith(".mspec")) {
+                    files.add(child);
                 }
             }
         }
-
-        return relatedFiles;
+        return files;
     }
 
-    private static void addSiblingFiles(PsiFile file, List<PsiFile> relatedFiles) {
-        if (file.getParent() != null) {
-            for (com.intellij.psi.PsiElement child : file.getParent().getChildren()) {
-                if (child instanceof PsiFile) {
-                    PsiFile siblingFile = (PsiFile) child;
-                    if (!siblingFile.equals(file) && siblingFile.getName().endsWith(".mspec")) {
-                        relatedFiles.add(siblingFile);
-                    }
-                }
+    private static void addSiblingFiles(VirtualFile file, List<VirtualFile> relatedFiles) {
+        for (VirtualFile sibling : file.getParent().getChildren()) {
+            if (!sibling.equals(file) && !sibling.isDirectory() && sibling.getName().endsWith(".mspec")) {
+                relatedFiles.add(sibling);
             }
         }
     }
@@ -125,7 +165,7 @@ public class MSpecPackageUtil {
     /**
      * All source/resource roots in the project. Cached against project root modifications.
      */
-    private static Set<VirtualFile> getAllSourceRoots(Project project) {
+    static Set<VirtualFile> getAllSourceRoots(Project project) {
         return CachedValuesManager.getManager(project).getCachedValue(project, () -> {
             Set<VirtualFile> roots = new LinkedHashSet<>();
             for (Module module : ModuleManager.getInstance(project).getModules()) {
@@ -138,4 +178,25 @@ public class MSpecPackageUtil {
                     ProjectRootModificationTracker.getInstance(project));
         });
     }
+
+    public static final class PackageKey {
+        private final String relativePath;
+        private final VirtualFile directory;
+
+        private PackageKey(String relativePath, VirtualFile directory) {
+            this.relativePath = relativePath;
+            this.directory = directory;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PackageKey other && Objects.equals(relativePath, other.relativePath)
+                    && Objects.equals(directory, other.directory);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(relativePath, directory);
+        }
+    }
 }
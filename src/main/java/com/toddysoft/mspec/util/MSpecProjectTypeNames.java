@@ -0,0 +1,287 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.IndexNotReadyException;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootModificationTracker;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.PairProcessor;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.toddysoft.mspec.MSpecFileType;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The names of all types defined in the project and its libraries, for completion of types outside
+ * of the current package, plus how often each is referenced.
+ * <p>
+ * Everything is kept in an immutable snapshot, which is replaced as a whole when an MSpec file or
+ * the project roots change, so readers never see a half-updated state. A new snapshot is derived
+ * from the previous one: only files whose content changed are read again, with
+ * {@link FileBasedIndex#getFileData} of {@link MSpecTypeDefinitionIndex} and
+ * {@link MSpecTypeUsageIndex}, and their usage counts are replaced by subtracting the old counts of
+ * the file and adding the new ones. The files themselves are only enumerated again when the set of
+ * MSpec files or the roots changed.
+ * <p>
+ * Names are bucketed by the first letter of each of their words ({@code FooBarRequest} is in the
+ * buckets of f, b and r). The completion prefix matcher only matches names where the first letter
+ * of the prefix starts a word, for both prefix and camel-hump matches, so a lookup only has to look
+ * at one bucket. The buckets are only rebuilt when the set of defined names changes.
+ */
+@Service(Service.Level.PROJECT)
+public final class MSpecProjectTypeNames {
+    private static final int BUCKETS = 128;
+
+    private final Project project;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+    public MSpecProjectTypeNames(@NotNull Project project) {
+        this.project = project;
+    }
+
+    public static MSpecProjectTypeNames getInstance(@NotNull Project project) {
+        return project.getService(MSpecProjectTypeNames.class);
+    }
+
+    /**
+     * Feeds the type names with a word starting with the first letter of the prefix to the
+     * processor, in alphabetical order, together with a file defining each.
+     */
+    public boolean processCandidates(@NotNull String prefix,
+                                     @NotNull PairProcessor<? super String, ? super VirtualFile> processor) {
+        if (prefix.isEmpty()) {
+            return true;
+        }
+        Snapshot value = getSnapshot();
+        int[] bucket = value.buckets[bucketOf(prefix.charAt(0))];
+        if (bucket == null) {
+            return true;
+        }
+        for (int index : bucket) {
+            String name = value.names[index];
+            if (!processor.process(name, value.definingFiles.get(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of references to types of the name in the project, whatever they resolve to.
+     */
+    public int getUsageCount(@NotNull String name) {
+        return getSnapshot().usageCounts.getOrDefault(name, 0);
+    }
+
+    /**
+     * The current snapshot, updated first if an MSpec file or the roots changed since it was taken.
+     * While indexes are not ready, the last snapshot is used as it is.
+     */
+    private Snapshot getSnapshot() {
+        long rootStamp = ProjectRootModificationTracker.getInstance(project).getModificationCount();
+        MSpecModificationTracker tracker = MSpecModificationTracker.getInstance(project);
+        long stamp = tracker.getModificationCount() + rootStamp;
+        long fileListStamp = tracker.getFileSetTracker().getModificationCount() + rootStamp;
+        Snapshot current = snapshot.get();
+        if (current.stamp == stamp || DumbService.isDumb(project)) {
+            return current;
+        }
+        Snapshot updated;
+        try {
+            updated = update(current, stamp, fileListStamp);
+        } catch (IndexNotReadyException e) {
+            return current;
+        }
+        // Another thread may have published a snapshot of the same state in the meantime
+        snapshot.compareAndSet(current, updated);
+        return updated;
+    }
+
+    private Snapshot update(Snapshot old, long stamp, long fileListStamp) {
+        Collection<VirtualFile> files = fileListStamp == old.fileListStamp
+                ? old.files.keySet()
+                : FileTypeIndex.getFiles(MSpecFileType.INSTANCE, GlobalSearchScope.allScope(project));
+        GlobalSearchScope projectScope = GlobalSearchScope.projectScope(project);
+        Map<VirtualFile, FileData> newFiles = new HashMap<>(files.size());
+        // Copied when the first file changes, shared with the old snapshot otherwise
+        Map<String, Integer> usageCounts = old.usageCounts;
+        boolean definitionsChanged = false;
+        for (VirtualFile file : files) {
+            ProgressManager.checkCanceled();
+            if (!file.isValid()) {
+                continue;
+            }
+            FileData before = old.files.get(file);
+            long fileStamp = getStamp(file);
+            FileData after = before != null && before.stamp == fileStamp
+                    ? before
+                    : readFileData(file, fileStamp, projectScope.contains(file));
+            newFiles.put(file, after);
+            if (after == before) {
+                continue;
+            }
+            if (usageCounts == old.usageCounts) {
+                usageCounts = new HashMap<>(old.usageCounts);
+            }
+            if (before != null) {
+                addUsages(usageCounts, before.usages, -1);
+            }
+            addUsages(usageCounts, after.usages, 1);
+            definitionsChanged |= before == null || !before.definitions.equals(after.definitions);
+        }
+        for (Map.Entry<VirtualFile, FileData> entry : old.files.entrySet()) {
+            if (!newFiles.containsKey(entry.getKey())) {
+                if (usageCounts == old.usageCounts) {
+                    usageCounts = new HashMap<>(old.usageCounts);
+                }
+                addUsages(usageCounts, entry.getValue().usages, -1);
+                definitionsChanged |= !entry.getValue().definitions.isEmpty();
+            }
+        }
+        if (!definitionsChanged) {
+            return new Snapshot(stamp, fileListStamp, newFiles, usageCounts, old.definingFiles, old.names, old.buckets);
+        }
+        Map<String, VirtualFile> definingFiles = new HashMap<>();
+        for (Map.Entry<VirtualFile, FileData> entry : newFiles.entrySet()) {
+            for (String name : entry.getValue().definitions) {
+                definingFiles.putIfAbsent(name, entry.getKey());
+            }
+        }
+        List<String> names = new ArrayList<>(definingFiles.keySet());
+        names.sort(String.CASE_INSENSITIVE_ORDER);
+        return new Snapshot(stamp, fileListStamp, newFiles, usageCounts, definingFiles,
+                names.toArray(String[]::new), computeBuckets(names));
+    }
+
+    /**
+     * The stamp of the text the indexes see for the file: that of its unsaved document if there is
+     * one, else that of the file.
+     */
+    private static long getStamp(VirtualFile file) {
+        Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+        return document != null ? document.getModificationStamp() : file.getModificationStamp();
+    }
+
+    private FileData readFileData(VirtualFile file, long stamp, boolean countUsages) {
+        FileBasedIndex index = FileBasedIndex.getInstance();
+        Set<String> definitions = Set.copyOf(index.getFileData(MSpecTypeDefinitionIndex.NAME, file, project).keySet());
+        Map<String, Integer> usages = new HashMap<>();
+        if (countUsages) {
+            for (Map.Entry<String, IntList> entry : index.getFileData(MSpecTypeUsageIndex.NAME, file, project).entrySet()) {
+                usages.put(entry.getKey(), entry.getValue().size());
+            }
+        }
+        return new FileData(stamp, definitions, usages);
+    }
+
+    private static void addUsages(Map<String, Integer> counts, Map<String, Integer> usages, int sign) {
+        for (Map.Entry<String, Integer> entry : usages.entrySet()) {
+            int count = counts.getOrDefault(entry.getKey(), 0) + sign * entry.getValue();
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            } else {
+                counts.remove(entry.getKey());
+            }
+        }
+    }
+
+    private static int[][] computeBuckets(List<String> names) {
+        IntList[] lists = new IntList[BUCKETS];
+        for (int i = 0; i < names.size(); i++) {
+            ProgressManager.checkCanceled();
+            String name = names.get(i);
+            for (int j = 0; j < name.length(); j++) {
+                if (!isWordStart(name, j)) {
+                    continue;
+                }
+                int bucket = bucketOf(name.charAt(j));
+                if (lists[bucket] == null) {
+                    lists[bucket] = new IntArrayList();
+                }
+                // A name goes into each bucket once, even with several words of the same letter
+                IntList list = lists[bucket];
+                if (list.isEmpty() || list.getInt(list.size() - 1) != i) {
+                    list.add(i);
+                }
+            }
+        }
+        int[][] result = new int[BUCKETS][];
+        for (int i = 0; i < BUCKETS; i++) {
+            if (lists[i] != null) {
+                result[i] = lists[i].toIntArray();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether a word may start at the index. Every capital counts, so acronyms like the R of
+     * HTTPRequest are covered too; a name in a bucket it doesn't match is left to the matcher.
+     */
+    private static boolean isWordStart(String name, int index) {
+        char c = name.charAt(index);
+        if (index == 0 || Character.isUpperCase(c)) {
+            return true;
+        }
+        char previous = name.charAt(index - 1);
+        if (previous == '_' || previous == '-') {
+            return c != '_' && c != '-';
+        }
+        return Character.isDigit(c) && !Character.isDigit(previous);
+    }
+
+    private static int bucketOf(char c) {
+        return Character.toLowerCase(c) & (BUCKETS - 1);
+    }
+
+    /**
+     * The names a file defines and the references it makes, as of the stamp.
+     */
+    private record FileData(long stamp, Set<String> definitions, Map<String, Integer> usages) {
+    }
+
+    /**
+     * Never modified once published; an update builds a new one and shares what did not change.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(-1, -1, Map.of(), Map.of(), Map.of(), new String[0], new int[BUCKETS][]);
+
+        final long stamp;
+        final long fileListStamp;
+        final Map<VirtualFile, FileData> files;
+        // Referenced name -> number of references in project files
+        final Map<String, Integer> usageCounts;
+        // Defined name -> one of the files defining it
+        final Map<String, VirtualFile> definingFiles;
+        // Sorted ignoring case
+        final String[] names;
+        // Indexes into names per lowercase first letter of a word, ascending
+        final int[][] buckets;
+
+        Snapshot(long stamp, long fileListStamp, Map<VirtualFile, FileData> files, Map<String, Integer> usageCounts,
+                 Map<String, VirtualFile> definingFiles, String[] names, int[][] buckets) {
+            this.stamp = stamp;
+            this.fileListStamp = fileListStamp;
+            this.files = files;
+            this.usageCounts = usageCounts;
+            this.definingFiles = definingFiles;
+            this.names = names;
+            this.buckets = buckets;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.toddysoft.mspec.util;
+
+import java.util.Objects;
+
+/**
+ * A type defined in an MSpec file: what kind of definition it is and the offset of its name.
+ */
+public final class MSpecTypeDefinition {
+    public enum Kind {
+        TYPE, DISCRIMINATED_TYPE, ENUM, DATA_IO,
+        /** A typeSwitch case with a name wildcard, {@code ['0x01' *Request ...]} */
+        CASE
+    }
+
+    public final Kind kind;
+    public final int offset;
+
+    public MSpecTypeDefinition(Kind kind, int offset) {
+        this.kind = kind;
+        this.offset = offset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MSpecTypeDefinition other && kind == other.kind && offset == other.offset;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, offset);
+    }
+}
@@ -0,0 +1,87 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.util.indexing.DataIndexer;
+import com.intellij.util.indexing.DefaultFileTypeSpecificInputFilter;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileBasedIndexExtension;
+import com.intellij.util.indexing.FileContent;
+import com.intellij.util.indexing.ID;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import com.toddysoft.mspec.MSpecFileType;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Persistent index from type name to its {@link MSpecTypeDefinition}, per .mspec file.
+ * <p>
+ * The index is kept on disk across IDE restarts and only re-indexes files whose content changed,
+ * so looking up types in the related files of an MSpec file needs neither their PSI nor a rescan of
+ * their text.
+ */
+public class MSpecTypeDefinitionIndex extends FileBasedIndexExtension<String, MSpecTypeDefinition> {
+    public static final ID<String, MSpecTypeDefinition> NAME = ID.create("mspec.type.definitions");
+
+    private static final MSpecTypeDefinition.Kind[] KINDS = MSpecTypeDefinition.Kind.values();
+
+    @NotNull
+    @Override
+    public ID<String, MSpecTypeDefinition> getName() {
+        return NAME;
+    }
+
+    @NotNull
+    @Override
+    public DataIndexer<String, MSpecTypeDefinition, FileContent> getIndexer() {
+        return inputData -> {
+            MSpecTypeTable definitions = MSpecTypeDefinitionScanner.scan(inputData.getContentAsText());
+            return definitions.isEmpty() ? Map.of() : definitions.toMap();
+        };
+    }
+
+    @NotNull
+    @Override
+    public KeyDescriptor<String> getKeyDescriptor() {
+        return EnumeratorStringDescriptor.INSTANCE;
+    }
+
+    @NotNull
+    @Override
+    public DataExternalizer<MSpecTypeDefinition> getValueExternalizer() {
+        return new DataExternalizer<>() {
+            @Override
+            public void save(@NotNull DataOutput out, MSpecTypeDefinition value) throws IOException {
+                out.writeByte(value.kind.ordinal());
+                DataInputOutputUtil.writeINT(out, value.offset);
+            }
+
+            @Override
+            public MSpecTypeDefinition read(@NotNull DataInput in) throws IOException {
+                MSpecTypeDefinition.Kind kind = KINDS[in.readByte()];
+                return new MSpecTypeDefinition(kind, DataInputOutputUtil.readINT(in));
+            }
+        };
+    }
+
+    @Override
+    public int getVersion() {
+        return 2;
+    }
+
+    @NotNull
+    @Override
+    public FileBasedIndex.InputFilter getInputFilter() {
+        return new DefaultFileTypeSpecificInputFilter(MSpecFileType.INSTANCE);
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+}
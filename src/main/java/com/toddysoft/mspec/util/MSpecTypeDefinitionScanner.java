@@ -0,0 +1,198 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.psi.tree.IElementType;
+import com.toddysoft.mspec.MSpecHighlightingLexer;
+import com.toddysoft.mspec.MSpecLexerBase;
+import com.toddysoft.mspec.MSpecTokenTypes;
+
+/**
+ * Extracts the type definitions from the text of an MSpec file in a single pass over the tokens of
+ * the highlighting lexer.
+ * <p>
+ * It recognizes the headers {@code [type Name}, {@code [discriminatedType Name}, {@code [dataIo Name}
+ * and {@code [enum <dataType>? Name}, and typeSwitch cases with a name wildcard,
+ * {@code ['1', '2' *Name} or {@code [*Name}. A case defines the name of the last type header before
+ * it plus its own name. The enclosing type is remembered as the scan goes, so the work is linear in
+ * the length of the file however many cases there are.
+ * <p>
+ * Bracket depth is not tracked, so a missing bracket while typing does not hide the definitions
+ * after it. An enum field, {@code [enum ErrorCode code]}, is told apart from an enum definition by
+ * the field name after the type.
+ */
+public final class MSpecTypeDefinitionScanner {
+
+    // Where the scan is within the header of a bracket
+    private static final int NONE = 0;
+    private static final int HEADER_START = 1;     // after '['
+    private static final int TYPE_NAME = 2;        // after '[type', '[discriminatedType', '[dataIo'
+    private static final int ENUM_TYPE = 3;        // after '[enum'
+    private static final int ENUM_SIZE = 4;        // after '[enum <sized type>'
+    private static final int ENUM_NAME = 5;        // after '[enum <type> <size>?'
+    private static final int ENUM_AFTER_NAME = 6;  // after '[enum ... Name': a definition unless a field name follows
+    private static final int ENUM_FIELD_NAME = 7;  // after '[enum Name name': a field unless an attribute follows
+    private static final int CASE_VALUE = 8;       // inside a tick expression of a case
+    private static final int CASE_AFTER_VALUE = 9; // after a discriminator value
+    private static final int CASE_NEXT_VALUE = 10; // after ','
+    private static final int CASE_ASTERISK = 11;   // after '*': the name wildcard or a '*' value
+
+    private MSpecTypeDefinitionScanner() {
+    }
+
+    /**
+     * The type definitions, in file order. The first definition of a name wins.
+     */
+    public static MSpecTypeTable scan(CharSequence text) {
+        MSpecTypeTable.Builder result = new MSpecTypeTable.Builder();
+        MSpecHighlightingLexer lexer = new MSpecHighlightingLexer();
+        lexer.start(text, 0, text.length(), MSpecLexerBase.STATE_DEFAULT);
+
+        int state = NONE;
+        int enumStart = 0;
+        int enumEnd = 0;
+        MSpecTypeDefinition.Kind kind = null;
+        String parentName = null;
+        for (IElementType type; (type = lexer.getTokenType()) != null; lexer.advance()) {
+            if (type == MSpecTokenTypes.WHITESPACE || type == MSpecTokenTypes.COMMENT) {
+                continue;
+            }
+            ProgressManager.checkCanceled();
+            int start = lexer.getTokenStart();
+            int end = lexer.getTokenEnd();
+            boolean inExpression = (lexer.getState() & MSpecLexerBase.STATE_EXPRESSION) != 0;
+
+            if (state == CASE_VALUE) {
+                // Wait for the closing tick
+                if (inExpression && is(text, start, end, "'")) {
+                    state = CASE_AFTER_VALUE;
+                }
+                continue;
+            }
+            if (inExpression) {
+                state = NONE;
+                continue;
+            }
+
+            int next = NONE;
+            switch (state) {
+                case HEADER_START -> {
+                    if (type == MSpecTokenTypes.DEFINITION_KEYWORD) {
+                        if (is(text, start, end, "type")) {
+                            kind = MSpecTypeDefinition.Kind.TYPE;
+                            next = TYPE_NAME;
+                        } else if (is(text, start, end, "discriminatedType")) {
+                            kind = MSpecTypeDefinition.Kind.DISCRIMINATED_TYPE;
+                            next = TYPE_NAME;
+                        } else if (is(text, start, end, "dataIo")) {
+                            kind = MSpecTypeDefinition.Kind.DATA_IO;
+                            next = TYPE_NAME;
+                        } else if (is(text, start, end, "enum")) {
+                            next = ENUM_TYPE;
+                        }
+                    } else {
+                        next = caseValueStart(text, start, end);
+                    }
+                }
+                case TYPE_NAME -> {
+                    if (type == MSpecTokenTypes.IDENTIFIER) {
+                        parentName = text.subSequence(start, end).toString();
+                        result.add(parentName, kind, start);
+                    }
+                }
+                case ENUM_TYPE -> {
+                    if (type == MSpecTokenTypes.PRIMITIVE_TYPE) {
+                        next = isSizedType(text, start, end) ? ENUM_SIZE : ENUM_NAME;
+                    } else if (type == MSpecTokenTypes.IDENTIFIER) {
+                        enumStart = start;
+                        enumEnd = end;
+                        next = ENUM_AFTER_NAME;
+                    }
+                }
+                case ENUM_SIZE -> {
+                    if (type == MSpecTokenTypes.NUMBER) {
+                        next = ENUM_NAME;
+                    }
+                }
+                case ENUM_NAME -> {
+                    if (type == MSpecTokenTypes.IDENTIFIER) {
+                        enumStart = start;
+                        enumEnd = end;
+                        next = ENUM_AFTER_NAME;
+                    }
+                }
+                case ENUM_AFTER_NAME -> {
+                    if (type == MSpecTokenTypes.IDENTIFIER) {
+                        next = ENUM_FIELD_NAME;
+                    } else {
+                        addEnum(result, text, enumStart, enumEnd);
+                    }
+                }
+                case ENUM_FIELD_NAME -> {
+                    if (is(text, start, end, "=")) {
+                        addEnum(result, text, enumStart, enumEnd);
+                    }
+                }
+                case CASE_AFTER_VALUE -> {
+                    if (is(text, start, end, ",")) {
+                        next = CASE_NEXT_VALUE;
+                    } else if (is(text, start, end, "*")) {
+                        next = CASE_ASTERISK;
+                    }
+                }
+                case CASE_NEXT_VALUE -> next = caseValueStart(text, start, end);
+                case CASE_ASTERISK -> {
+                    if (type == MSpecTokenTypes.IDENTIFIER) {
+                        if (parentName != null) {
+                            result.add(parentName + text.subSequence(start, end),
+                                    MSpecTypeDefinition.Kind.CASE, start);
+                        }
+                    } else if (is(text, start, end, ",")) {
+                        // The '*' was a discriminator value
+                        next = CASE_NEXT_VALUE;
+                    } else if (is(text, start, end, "*")) {
+                        next = CASE_ASTERISK;
+                    }
+                }
+                default -> {
+                }
+            }
+            state = next;
+
+            if (is(text, start, end, "[")) {
+                state = HEADER_START;
+            }
+        }
+        if (state == ENUM_AFTER_NAME) {
+            addEnum(result, text, enumStart, enumEnd);
+        }
+        return result.build();
+    }
+
+    private static int caseValueStart(CharSequence text, int start, int end) {
+        if (is(text, start, end, "'")) {
+            return CASE_VALUE;
+        }
+        return is(text, start, end, "*") ? CASE_ASTERISK : NONE;
+    }
+
+    private static void addEnum(MSpecTypeTable.Builder result, CharSequence text, int start, int end) {
+        result.add(text.subSequence(start, end).toString(), MSpecTypeDefinition.Kind.ENUM, start);
+    }
+
+    private static boolean isSizedType(CharSequence text, int start, int end) {
+        return is(text, start, end, "int") || is(text, start, end, "uint") || is(text, start, end, "float")
+                || is(text, start, end, "ufloat") || is(text, start, end, "string");
+    }
+
+    private static boolean is(CharSequence text, int start, int end, String token) {
+        if (end - start != token.length()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (text.charAt(start + i) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
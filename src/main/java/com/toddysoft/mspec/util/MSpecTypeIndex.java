@@ -1,139 +1,282 @@
 package com.toddysoft.mspec.util;
 
-import com.intellij.openapi.roots.ProjectRootModificationTracker;
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.CachedValue;
 import com.intellij.psi.util.CachedValueProvider;
 import com.intellij.psi.util.CachedValuesManager;
-import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.indexing.FileBasedIndex;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Cached extraction of MSpec type definitions.
  *
- * Type extraction was previously done by full-file regex scans on every annotator invocation,
- * completion trigger, and goto-declaration lookup. This class caches the per-file result keyed
- * to {@link PsiModificationTracker#MODIFICATION_COUNT}, and caches the scope-wide merged set
- * additionally against {@link ProjectRootModificationTracker} so module/root changes invalidate it.
+ * Types of the file itself are extracted from its text, which is at hand and may have edits the
+ * index has not seen yet; the file is not parsed for that. Types of the related files come from
+ * {@link MSpecTypeDefinitionIndex}, which is persisted across restarts and needs neither the PSI of
+ * those files nor a scan of their text. While indexes are being built (dumb mode), the types of
+ * those files are extracted from their text as well.
+ *
+ * The per-file result is cached against the file. The types in scope of a file are the symbol
+ * table of its package ({@link MSpecPackageSymbols}), shared by all files in the package. They are
+ * cached against the trackers of the package's directories ({@link MSpecModificationTracker}), so
+ * they survive edits of anything but the MSpec files of the package.
+ *
+ * All of these are {@link MSpecTypeTable}s: interned names with primitive kind and offset arrays.
  */
 public final class MSpecTypeIndex {
-
-    private static final Pattern TYPE_DEFINITION_PATTERN =
-            Pattern.compile("\\[\\s*(?:type|dataIo|discriminatedType)\\s+([A-Za-z][A-Za-z0-9_-]*)");
-
-    private static final Pattern ENUM_DEFINITION_PATTERN =
-            Pattern.compile("\\[\\s*enum\\s+(?:(?:(?:bit|byte|vint|vuint|time|date|dateTime|vstring)\\s+)|(?:(?:int|uint|float|ufloat|string)\\s+\\d+\\s+))?([A-Za-z][A-Za-z0-9_-]*)");
-
-    private static final Pattern ASTERISK_CASE_PATTERN =
-            Pattern.compile("\\[\\s*'[^']*'\\s+\\*([A-Za-z][A-Za-z0-9_-]*)");
-
-    private static final Pattern PARENT_TYPE_PATTERN =
-            Pattern.compile("\\[\\s*(?:type|discriminatedType|dataIo)\\s+([A-Za-z][A-Za-z0-9_-]*)");
+    private static final Key<CachedValue<MSpecTypeTable>> TEXT_DEFINITIONS = Key.create("mspec.text.definitions");
+    private static final Key<CachedValue<MSpecTypeTable>> TYPES_IN_SCOPE = Key.create("mspec.types.in.scope");
+    // The types in scope as last computed, for highlighting while they are recomputed
+    private static final Key<MSpecTypeTable> LAST_TYPES_IN_SCOPE = Key.create("mspec.last.types.in.scope");
+    // Coalesces the background computations of the types in scope of one file
+    private static final Object SCOPE_COMPUTATION = new Object();
 
     private MSpecTypeIndex() {
     }
 
     /**
-     * Type name -> file offset of the name (for goto-declaration). Cached per file.
+     * Types defined in the given file, with the offsets of their names, extracted from the file text.
+     * Cached per file.
      */
-    public static Map<String, Integer> getTypeOffsetsInFile(PsiFile file) {
-        return CachedValuesManager.getCachedValue(file, () -> {
-            Map<String, Integer> result = new LinkedHashMap<>();
-            String fileText = file.getText();
-
-            Matcher matcher = TYPE_DEFINITION_PATTERN.matcher(fileText);
-            while (matcher.find()) {
-                result.putIfAbsent(matcher.group(1), matcher.start(1));
-            }
-
-            Matcher enumMatcher = ENUM_DEFINITION_PATTERN.matcher(fileText);
-            while (enumMatcher.find()) {
-                result.putIfAbsent(enumMatcher.group(1), enumMatcher.start(1));
-            }
+    public static MSpecTypeTable getTypeDefinitionsInText(PsiFile file) {
+        return CachedValuesManager.getCachedValue(file, () -> CachedValueProvider.Result.create(
+                MSpecTypeDefinitionScanner.scan(file.getViewProvider().getContents()),
+                file));
+    }
 
-            Matcher asteriskMatcher = ASTERISK_CASE_PATTERN.matcher(fileText);
-            while (asteriskMatcher.find()) {
-                String caseName = asteriskMatcher.group(1);
-                String parent = findParentTypeName(fileText, asteriskMatcher.start());
-                if (parent != null) {
-                    result.putIfAbsent(parent + caseName, asteriskMatcher.start(1));
+    /**
+     * Type names defined in the file plus all related files (same dir, same package across roots).
+     * <p>
+     * This is the shared table of the file's package from {@link MSpecPackageSymbols}. Only if the
+     * file defines types the table doesn't know yet (unsaved edits the index hasn't seen, or a file
+     * outside of the package's directories) does the file get a merged set of its own. Cached.
+     */
+    public static MSpecTypeTable getTypesInScope(PsiFile file) {
+        Project project = file.getProject();
+        MSpecTypeTable types = CachedValuesManager.getManager(project).getCachedValue(file, TYPES_IN_SCOPE, () -> {
+            MSpecTypeTable localTypes = getTypeDefinitionsInText(file);
+            VirtualFile virtualFile = file.getOriginalFile().getVirtualFile();
+            MSpecTypeTable scope = localTypes;
+            List<Object> dependencies = new ArrayList<>();
+            dependencies.add(file);
+            if (virtualFile != null && virtualFile.getParent() != null) {
+                MSpecPackageSymbols symbols = MSpecPackageSymbols.getInstance(project);
+                MSpecPackageUtil.PackageKey key = MSpecPackageUtil.getPackageKey(project, virtualFile.getParent());
+                MSpecTypeTable packageTypes = symbols.getTypesInPackage(key);
+                if (packageTypes.containsAll(localTypes)) {
+                    scope = packageTypes;
+                } else {
+                    scope = new MSpecTypeTable.Builder().addAll(packageTypes).addAll(localTypes).build();
                 }
+                dependencies.addAll(symbols.getDependencies(key));
             }
-
-            return CachedValueProvider.Result.create(
-                    Collections.unmodifiableMap(result),
-                    file);
-        });
+            return CachedValueProvider.Result.create(scope, dependencies.toArray());
+        }, false);
+        file.putUserData(LAST_TYPES_IN_SCOPE, types);
+        return types;
     }
 
     /**
-     * Type names defined in the given file. Cached.
+     * {@link #getTypesInScope}, for callers on the highlighting thread that must not block on the
+     * computation of a package table (loading the text or index data of the files of the package).
+     * If the scope of the file or the table of its package is up to date, the scope is returned
+     * right away. Otherwise it is computed in a cancellable background read action, which restarts
+     * highlighting of the file when it is done, and this returns the scope as last computed plus the
+     * types the file defines now, or null if it has never been computed.
      */
-    public static Set<String> getTypesInFile(PsiFile file) {
-        return getTypeOffsetsInFile(file).keySet();
+    public static @Nullable MSpecTypeTable getTypesInScopeIfReady(PsiFile file) {
+        CachedValue<MSpecTypeTable> cached = file.getUserData(TYPES_IN_SCOPE);
+        if (cached != null && cached.hasUpToDateValue()) {
+            return cached.getValue();
+        }
+        VirtualFile virtualFile = file.getOriginalFile().getVirtualFile();
+        if (virtualFile == null || virtualFile.getParent() == null
+                || MSpecPackageSymbols.getInstance(file.getProject()).hasUpToDateTable(virtualFile.getParent())) {
+            return getTypesInScope(file);
+        }
+        computeTypesInScopeLater(file);
+        MSpecTypeTable last = file.getUserData(LAST_TYPES_IN_SCOPE);
+        if (last == null) {
+            return null;
+        }
+        MSpecTypeTable localTypes = getTypeDefinitionsInText(file);
+        return last.containsAll(localTypes) ? last : new MSpecTypeTable.Builder().addAll(last).addAll(localTypes).build();
     }
 
-    /**
-     * Type names defined in the file plus all related files (same dir, same package across roots).
-     * Cached.
-     */
-    public static Set<String> getTypesInScope(PsiFile file) {
-        return CachedValuesManager.getCachedValue(file, () -> {
-            Set<String> all = new HashSet<>(getTypesInFile(file));
-            for (PsiFile related : MSpecPackageUtil.findRelatedMSpecFiles(file)) {
-                all.addAll(getTypesInFile(related));
-            }
-            return CachedValueProvider.Result.create(
-                    Collections.unmodifiableSet(all),
-                    PsiModificationTracker.MODIFICATION_COUNT,
-                    ProjectRootModificationTracker.getInstance(file.getProject()));
-        });
+    private static void computeTypesInScopeLater(PsiFile file) {
+        Project project = file.getProject();
+        ReadAction.nonBlocking(() -> getTypesInScope(file))
+                .expireWith(project)
+                .expireWhen(() -> !file.isValid())
+                .coalesceBy(file, SCOPE_COMPUTATION)
+                .finishOnUiThread(ModalityState.any(), scope -> DaemonCodeAnalyzer.getInstance(project).restart(file))
+                .submit(AppExecutorUtil.getAppExecutorService());
     }
 
     /**
      * Looks up where a type is defined across the file and related files. Returns null if not found.
+     * <p>
+     * Related files are only looked at as {@link VirtualFile}s plus index data (or their text in
+     * dumb mode); their PSI is not created, unless the caller asks the result for it.
      */
     public static TypeLocation findTypeDefinition(PsiFile file, String typeName) {
-        Integer localOffset = getTypeOffsetsInFile(file).get(typeName);
-        if (localOffset != null) {
-            return new TypeLocation(file, localOffset);
+        MSpecTypeTable local = getTypeDefinitionsInText(file);
+        int index = local.indexOf(typeName);
+        if (index >= 0) {
+            return new TypeLocation(file, local.getOffset(index));
+        }
+
+        return findInRelatedFiles(file.getProject(), MSpecPackageUtil.findRelatedMSpecFiles(file), typeName);
+    }
+
+    /**
+     * The file a type name used in the given file resolves to, the same way as
+     * {@link #findTypeDefinition}, but decided on the index data of the files alone: neither the file
+     * nor its related files are parsed. Returns null if the name is not defined.
+     */
+    public static @Nullable VirtualFile findDefiningFile(Project project, VirtualFile file, String typeName) {
+        if (getTypeDefinitions(project, file).indexOf(typeName) >= 0) {
+            return file;
         }
-        for (PsiFile related : MSpecPackageUtil.findRelatedMSpecFiles(file)) {
-            Integer offset = getTypeOffsetsInFile(related).get(typeName);
-            if (offset != null) {
-                return new TypeLocation(related, offset);
+        TypeLocation location = findInRelatedFiles(
+                project, MSpecPackageUtil.findRelatedMSpecFiles(project, file), typeName);
+        return location != null ? location.getVirtualFile() : null;
+    }
+
+    private static TypeLocation findInRelatedFiles(Project project, List<VirtualFile> relatedFiles, String typeName) {
+        Map<VirtualFile, MSpecTypeDefinition> indexed = findIndexedDefinitions(project, relatedFiles, typeName);
+        for (VirtualFile related : relatedFiles) {
+            if (!related.isValid()) {
+                continue;
+            }
+            if (isIndexed(project, related)) {
+                MSpecTypeDefinition definition = indexed.get(related);
+                if (definition != null) {
+                    return new TypeLocation(project, related, definition.offset);
+                }
+            } else {
+                MSpecTypeTable table = getTypeDefinitionsInText(project, related);
+                int index = table.indexOf(typeName);
+                if (index >= 0) {
+                    return new TypeLocation(project, related, table.getOffset(index));
+                }
             }
         }
         return null;
     }
 
-    private static String findParentTypeName(String fileText, int offset) {
-        Matcher matcher = PARENT_TYPE_PATTERN.matcher(fileText);
-        String lastMatch = null;
-        while (matcher.find()) {
-            if (matcher.start() >= offset) {
-                break;
+    /**
+     * The type definitions of any MSpec file, from the index if possible.
+     */
+    public static MSpecTypeTable getTypeDefinitions(Project project, VirtualFile file) {
+        if (isIndexed(project, file)) {
+            return MSpecTypeTable.of(FileBasedIndex.getInstance().getFileData(MSpecTypeDefinitionIndex.NAME, file, project));
+        }
+        return getTypeDefinitionsInText(project, file);
+    }
+
+    /**
+     * The type definitions extracted from the text of a file that may have no PSI: the unsaved
+     * document if there is one, the file content otherwise. Cached on the file until it (or its
+     * document, or another MSpec file in its directory) changes.
+     */
+    private static MSpecTypeTable getTypeDefinitionsInText(Project project, VirtualFile file) {
+        return CachedValuesManager.getManager(project).getCachedValue(file, TEXT_DEFINITIONS, () -> {
+            Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+            if (document != null) {
+                return CachedValueProvider.Result.create(
+                        MSpecTypeDefinitionScanner.scan(document.getImmutableCharSequence()), file, document);
             }
-            lastMatch = matcher.group(1);
+            return CachedValueProvider.Result.create(MSpecTypeDefinitionScanner.scan(LoadTextUtil.loadText(file)),
+                    file,
+                    MSpecModificationTracker.getInstance(project).forDirectory(file.getParent()));
+        }, false);
+    }
+
+    private static Map<VirtualFile, MSpecTypeDefinition> findIndexedDefinitions(
+            Project project, List<VirtualFile> relatedFiles, String typeName) {
+        List<VirtualFile> virtualFiles = new ArrayList<>(relatedFiles.size());
+        for (VirtualFile related : relatedFiles) {
+            if (related.isValid() && isIndexed(project, related)) {
+                virtualFiles.add(related);
+            }
+        }
+        Map<VirtualFile, MSpecTypeDefinition> result = new HashMap<>();
+        if (virtualFiles.isEmpty()) {
+            return result;
         }
-        return lastMatch;
+        FileBasedIndex.getInstance().processValues(MSpecTypeDefinitionIndex.NAME, typeName, null,
+                (virtualFile, definition) -> {
+                    result.putIfAbsent(virtualFile, definition);
+                    return true;
+                },
+                GlobalSearchScope.filesScope(project, virtualFiles));
+        return result;
     }
 
+    /**
+     * Whether the index can be asked about the file: not in dumb mode, and the file is part of the
+     * project (files outside of it, like a file opened from elsewhere on disk, are not indexed).
+     */
+    private static boolean isIndexed(Project project, VirtualFile file) {
+        if (DumbService.isDumb(project)) {
+            return false;
+        }
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        return fileIndex.isInContent(file) || fileIndex.isInLibrary(file);
+    }
+
+    /**
+     * Where a type is defined. A definition in another file is only known by its {@link VirtualFile};
+     * its PSI is looked up when {@link #getPsiFile()} is asked for it, e.g. to navigate there.
+     */
     public static final class TypeLocation {
-        public final PsiFile file;
+        private final Project project;
+        private final VirtualFile virtualFile;
+        private PsiFile psiFile;
         public final int offset;
 
         TypeLocation(PsiFile file, int offset) {
-            this.file = file;
+            this.project = file.getProject();
+            this.virtualFile = file.getVirtualFile();
+            this.psiFile = file;
+            this.offset = offset;
+        }
+
+        TypeLocation(Project project, VirtualFile file, int offset) {
+            this.project = project;
+            this.virtualFile = file;
             this.offset = offset;
         }
+
+        public VirtualFile getVirtualFile() {
+            return virtualFile;
+        }
+
+        public PsiFile getPsiFile() {
+            if (psiFile == null && virtualFile.isValid()) {
+                psiFile = PsiManager.getInstance(project).findFile(virtualFile);
+            }
+            return psiFile;
+        }
     }
 }
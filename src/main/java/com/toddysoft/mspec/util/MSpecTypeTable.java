@@ -0,0 +1,156 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.util.containers.Interner;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, compact table of type definitions: the set of type names, plus the kind and name offset
+ * of each.
+ * <p>
+ * Names are interned, so the tables of a file, of its package and of every other file in scope
+ * share one String per type name. Kinds and offsets are kept in parallel primitive arrays, and a
+ * name is looked up in an open-addressing array of indexes, so a table holds no per-entry objects.
+ */
+public final class MSpecTypeTable extends AbstractSet<String> {
+    public static final MSpecTypeTable EMPTY = new Builder().build();
+
+    private static final Interner<String> NAMES = Interner.createWeakInterner();
+    private static final MSpecTypeDefinition.Kind[] KINDS = MSpecTypeDefinition.Kind.values();
+
+    private final String[] names;
+    private final int[] offsets;
+    private final byte[] kinds;
+    // Index + 1 of the entry for a hash slot, 0 for an empty slot; linear probing
+    private final int[] slots;
+
+    private MSpecTypeTable(String[] names, int[] offsets, byte[] kinds) {
+        this.names = names;
+        this.offsets = offsets;
+        this.kinds = kinds;
+        this.slots = new int[Math.max(2, Integer.highestOneBit(Math.max(1, names.length) * 2) * 2)];
+        int mask = slots.length - 1;
+        for (int i = 0; i < names.length; i++) {
+            int slot = hash(names[i]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    public static MSpecTypeTable of(Map<String, MSpecTypeDefinition> definitions) {
+        Builder builder = new Builder();
+        for (Map.Entry<String, MSpecTypeDefinition> entry : definitions.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue().kind, entry.getValue().offset);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Index of the entry for the name, or -1.
+     */
+    public int indexOf(Object name) {
+        if (!(name instanceof String)) {
+            return -1;
+        }
+        int mask = slots.length - 1;
+        for (int slot = hash((String) name) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if (names[index].equals(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<String> iterator() {
+        return Arrays.asList(names).iterator();
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public MSpecTypeDefinition.Kind getKind(int index) {
+        return KINDS[kinds[index]];
+    }
+
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * The table as a map, e.g. as the value of a file-based index.
+     */
+    public Map<String, MSpecTypeDefinition> toMap() {
+        Map<String, MSpecTypeDefinition> map = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], new MSpecTypeDefinition(getKind(i), offsets[i]));
+        }
+        return map;
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Collects entries in order; the first entry for a name wins.
+     */
+    public static final class Builder {
+        private final Set<String> seen = new HashSet<>();
+        private String[] names = new String[16];
+        private int[] offsets = new int[16];
+        private byte[] kinds = new byte[16];
+        private int size;
+
+        public boolean add(String name, MSpecTypeDefinition.Kind kind, int offset) {
+            if (!seen.add(name)) {
+                return false;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                kinds = Arrays.copyOf(kinds, size * 2);
+            }
+            names[size] = NAMES.intern(name);
+            offsets[size] = offset;
+            kinds[size] = (byte) kind.ordinal();
+            size++;
+            return true;
+        }
+
+        public Builder addAll(MSpecTypeTable table) {
+            for (int i = 0; i < table.size(); i++) {
+                add(table.names[i], table.getKind(i), table.offsets[i]);
+            }
+            return this;
+        }
+
+        public MSpecTypeTable build() {
+            return new MSpecTypeTable(Arrays.copyOf(names, size), Arrays.copyOf(offsets, size),
+                    Arrays.copyOf(kinds, size));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.indexing.DataIndexer;
+import com.intellij.util.indexing.DefaultFileTypeSpecificInputFilter;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileBasedIndexExtension;
+import com.intellij.util.indexing.FileContent;
+import com.intellij.util.indexing.ID;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import com.toddysoft.mspec.MSpecFileType;
+import com.toddysoft.mspec.MSpecHighlightingLexer;
+import com.toddysoft.mspec.MSpecLexerBase;
+import com.toddysoft.mspec.MSpecTokenTypes;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent index from a referenced type name to the offsets of its references, per .mspec file.
+ * <p>
+ * A reference is the type of a field that takes a type: {@code [simple Item item]},
+ * {@code [array Item items count '3']}, {@code [enum ErrorCode code]}, {@code [manual Foo ...]} and
+ * so on, at any nesting depth, including fields inside typeSwitch cases. The references are found
+ * with the highlighting lexer, so indexing a file does not parse it.
+ */
+public class MSpecTypeUsageIndex extends FileBasedIndexExtension<String, IntList> {
+    public static final ID<String, IntList> NAME = ID.create("mspec.type.usages");
+
+    @NotNull
+    @Override
+    public ID<String, IntList> getName() {
+        return NAME;
+    }
+
+    @NotNull
+    @Override
+    public DataIndexer<String, IntList, FileContent> getIndexer() {
+        return inputData -> extractTypeReferences(inputData.getContentAsText());
+    }
+
+    /**
+     * Referenced type name -> start offsets of the references, in file order.
+     */
+    public static Map<String, IntList> extractTypeReferences(CharSequence text) {
+        Map<String, IntList> result = new HashMap<>();
+        MSpecHighlightingLexer lexer = new MSpecHighlightingLexer();
+        lexer.start(text, 0, text.length(), MSpecLexerBase.STATE_DEFAULT);
+        int depth = 0;
+        boolean afterOpenBracket = false;
+        boolean expectTypeReference = false;
+        for (IElementType type; (type = lexer.getTokenType()) != null; lexer.advance()) {
+            if (type == MSpecTokenTypes.WHITESPACE || type == MSpecTokenTypes.COMMENT) {
+                continue;
+            }
+            int start = lexer.getTokenStart();
+            int end = lexer.getTokenEnd();
+            boolean inExpression = (lexer.getState() & MSpecLexerBase.STATE_EXPRESSION) != 0;
+
+            if (expectTypeReference && type == MSpecTokenTypes.IDENTIFIER) {
+                result.computeIfAbsent(text.subSequence(start, end).toString(), k -> new IntArrayList()).add(start);
+            }
+            // At the top level, '[enum' starts an enum definition, not an enum field
+            expectTypeReference = afterOpenBracket && depth > 1
+                    && (type == MSpecTokenTypes.FIELD_KEYWORD || type == MSpecTokenTypes.DEFINITION_KEYWORD)
+                    && MSpecFileModel.FIELD_TYPES_WITH_TYPE_REF.contains(text.subSequence(start, end).toString());
+            afterOpenBracket = false;
+
+            if (!inExpression && type == MSpecTokenTypes.BRACKET && end - start == 1) {
+                char c = text.charAt(start);
+                if (c == '[') {
+                    depth++;
+                    afterOpenBracket = true;
+                } else if (c == ']') {
+                    depth = Math.max(0, depth - 1);
+                }
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public KeyDescriptor<String> getKeyDescriptor() {
+        return EnumeratorStringDescriptor.INSTANCE;
+    }
+
+    @NotNull
+    @Override
+    public DataExternalizer<IntList> getValueExternalizer() {
+        return new DataExternalizer<>() {
+            @Override
+            public void save(@NotNull DataOutput out, IntList value) throws IOException {
+                DataInputOutputUtil.writeINT(out, value.size());
+                // Offsets are ascending, so the deltas stay small
+                int previous = 0;
+                for (int i = 0; i < value.size(); i++) {
+                    DataInputOutputUtil.writeINT(out, value.getInt(i) - previous);
+                    previous = value.getInt(i);
+                }
+            }
+
+            @Override
+            public IntList read(@NotNull DataInput in) throws IOException {
+                int size = DataInputOutputUtil.readINT(in);
+                IntList value = new IntArrayList(size);
+                int previous = 0;
+                for (int i = 0; i < size; i++) {
+                    previous += DataInputOutputUtil.readINT(in);
+                    value.add(previous);
+                }
+                return value;
+            }
+        };
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @NotNull
+    @Override
+    public FileBasedIndex.InputFilter getInputFilter() {
+        return new DefaultFileTypeSpecificInputFilter(MSpecFileType.INSTANCE);
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiReference;
+import com.intellij.psi.PsiReferenceBase;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.SearchScope;
+import com.intellij.util.Processor;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.toddysoft.mspec.psi.MSpecTypeDeclaration;
+import it.unimi.dsi.fastutil.ints.IntList;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the references to a type through {@link MSpecTypeUsageIndex}.
+ * <p>
+ * The index only knows the referenced name. A file counts as referencing the declaration if
+ * the name resolves to the declaration's file from there, the same way goto-declaration resolves it.
+ * That is decided on the virtual files and the type definition index alone, see
+ * {@link MSpecTypeIndex#findDefiningFile}; only files that do reference the declaration are parsed,
+ * and only to hand out their references.
+ */
+public final class MSpecTypeUsageSearch {
+
+    private MSpecTypeUsageSearch() {
+    }
+
+    /**
+     * Number of references to the declaration in the project. Neither parses nor loads the
+     * referencing files.
+     */
+    public static int countReferences(MSpecTypeDeclaration declaration) {
+        String name = declaration.getName();
+        VirtualFile declarationFile = declaration.getContainingFile().getOriginalFile().getVirtualFile();
+        if (name == null || declarationFile == null) {
+            return 0;
+        }
+        Project project = declaration.getProject();
+        int count = 0;
+        for (Map.Entry<VirtualFile, IntList> entry
+                : findCandidates(project, name, GlobalSearchScope.projectScope(project)).entrySet()) {
+            if (resolvesTo(project, entry.getKey(), name, declarationFile)) {
+                count += entry.getValue().size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Feeds the references to the declaration within the scope to the processor.
+     */
+    public static boolean processReferences(MSpecTypeDeclaration declaration, SearchScope scope,
+                                            Processor<? super PsiReference> processor) {
+        String name = declaration.getName();
+        VirtualFile declarationFile = declaration.getContainingFile().getOriginalFile().getVirtualFile();
+        if (name == null || declarationFile == null) {
+            return true;
+        }
+        Project project = declaration.getProject();
+        PsiManager psiManager = PsiManager.getInstance(project);
+        for (Map.Entry<VirtualFile, IntList> entry
+                : findCandidates(project, name, GlobalSearchScope.allScope(project)).entrySet()) {
+            if (!scope.contains(entry.getKey()) || !resolvesTo(project, entry.getKey(), name, declarationFile)) {
+                continue;
+            }
+            PsiFile file = psiManager.findFile(entry.getKey());
+            if (file == null) {
+                continue;
+            }
+            IntList offsets = entry.getValue();
+            for (int i = 0; i < offsets.size(); i++) {
+                PsiElement element = file.findElementAt(offsets.getInt(i));
+                if (element == null || !element.textMatches(name)) {
+                    continue;
+                }
+                PsiReference reference = new PsiReferenceBase.Immediate<>(
+                        element, TextRange.from(0, element.getTextLength()), declaration);
+                if (!processor.process(reference)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Map<VirtualFile, IntList> findCandidates(Project project, String name, GlobalSearchScope scope) {
+        // Collected first: resolving the name queries the indexes again, which must not happen while
+        // the index is processing values
+        Map<VirtualFile, IntList> result = new LinkedHashMap<>();
+        FileBasedIndex.getInstance().processValues(MSpecTypeUsageIndex.NAME, name, null,
+                (file, offsets) -> {
+                    result.put(file, offsets);
+                    return true;
+                },
+                scope);
+        return result;
+    }
+
+    private static boolean resolvesTo(Project project, VirtualFile file, String name, VirtualFile declarationFile) {
+        return declarationFile.equals(MSpecTypeIndex.findDefiningFile(project, file, name));
+    }
+}
@@ -0,0 +1,39 @@
+package com.toddysoft.mspec;
+
+/**
+ * A text that counts the characters read from it, for tests of how the work of a lexer, scanner or
+ * parser grows with the size of its input. Unlike time, the count does not depend on the machine.
+ */
+public final class CountingText implements CharSequence {
+    private final String text;
+    private long reads;
+
+    public CountingText(String text) {
+        this.text = text;
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        reads++;
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,95 @@
+package com.toddysoft.mspec;
+
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.intellij.usageView.UsageInfo;
+import com.toddysoft.mspec.psi.MSpecTypeDeclaration;
+import com.toddysoft.mspec.util.MSpecTypeUsageSearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Find Usages and the usage count of type declarations, which both go through the usage index.
+ */
+public class MSpecFindUsagesTest extends BasePlatformTestCase {
+
+    public void testUsagesInTheFileAndItsPackage() {
+        PsiFile definitions = myFixture.addFileToProject("items.mspec", """
+                [type Item
+                    [simple uint 8 x]
+                ]
+                [type Pair
+                    [simple Item first]
+                ]
+                """);
+        PsiFile uses = myFixture.addFileToProject("uses.mspec", """
+                [type Foo
+                    [simple Item a]
+                    [array Item b count '2']
+                    [optional uint 8 Item]
+                ]
+                """);
+        MSpecTypeDeclaration item = findDeclaration(definitions, "Item");
+
+        Collection<UsageInfo> usages = myFixture.findUsages(item);
+
+        assertEquals(3, usages.size());
+        assertEquals(List.of("items.mspec", "uses.mspec", "uses.mspec"), getFileNames(usages));
+        for (UsageInfo usage : usages) {
+            assertEquals("Item", usage.getElement().getText());
+        }
+        assertEquals(3, MSpecTypeUsageSearch.countReferences(item));
+        assertEquals(0, MSpecTypeUsageSearch.countReferences(findDeclaration(uses, "Foo")));
+    }
+
+    public void testDefinitionInTheReferencingFileShadowsOthers() {
+        PsiFile definitions = myFixture.addFileToProject("a/items.mspec", """
+                [type Item
+                    [simple uint 8 x]
+                ]
+                """);
+        myFixture.addFileToProject("a/uses.mspec", """
+                [type Foo
+                    [simple Item a]
+                ]
+                """);
+        PsiFile shadowing = myFixture.addFileToProject("a/shadow.mspec", """
+                [type Item
+                    [simple uint 16 y]
+                ]
+                [type Bar
+                    [simple Item a]
+                ]
+                """);
+        myFixture.addFileToProject("b/other.mspec", """
+                [type Baz
+                    [simple Item a]
+                ]
+                """);
+
+        assertEquals(List.of("uses.mspec"), getFileNames(myFixture.findUsages(findDeclaration(definitions, "Item"))));
+        assertEquals(1, MSpecTypeUsageSearch.countReferences(findDeclaration(definitions, "Item")));
+        assertEquals(List.of("shadow.mspec"), getFileNames(myFixture.findUsages(findDeclaration(shadowing, "Item"))));
+    }
+
+    private static MSpecTypeDeclaration findDeclaration(PsiFile file, String name) {
+        for (MSpecTypeDeclaration declaration : PsiTreeUtil.findChildrenOfType(file, MSpecTypeDeclaration.class)) {
+            if (name.equals(declaration.getName())) {
+                return declaration;
+            }
+        }
+        throw new AssertionError("No declaration of " + name + " in " + file.getName());
+    }
+
+    private static List<String> getFileNames(Collection<UsageInfo> usages) {
+        List<String> names = new ArrayList<>();
+        for (UsageInfo usage : usages) {
+            names.add(usage.getFile().getName());
+        }
+        names.sort(null);
+        return names;
+    }
+}
@@ -0,0 +1,80 @@
+package com.toddysoft.mspec;
+
+import com.intellij.lexer.Lexer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link MSpecHighlightingLexer} has to produce exactly the tokens of the ANTLR-based
+ * {@link MSpecLexerAdapter}: the same types, ranges and states, also when restarted in the middle of
+ * a file the way the editor does after a change.
+ */
+public class MSpecHighlightingLexerTest {
+
+    // Literals, operators and near-keywords, plus a string and a block comment left open at the end
+    private static final String EDGE_CASES = "[type X 12 34 1.5 0x1F 0x1G -5 - a-b \"str\" 'count' == != >= >> <= < "
+            + "& && | || % ^ ? : ! = , . typeSwitch types true trueX é 12a3 12a3b\n\t\f\r\n\n"
+            + "[array uint 8 count count 'count'] [array Foo('count') length length] \"un /* c */ /* un\n";
+
+    @Test
+    public void sameTokensAsAntlrLexer() {
+        for (Map.Entry<String, String> spec : MSpecTestData.getSpecs().entrySet()) {
+            assertEquals(spec.getKey(), lex(new MSpecLexerAdapter(), spec.getValue(), 0, MSpecLexerBase.STATE_DEFAULT),
+                    lex(new MSpecHighlightingLexer(), spec.getValue(), 0, MSpecLexerBase.STATE_DEFAULT));
+        }
+    }
+
+    @Test
+    public void sameTokensAsAntlrLexerForEdgeCases() {
+        assertEquals(lex(new MSpecLexerAdapter(), EDGE_CASES, 0, MSpecLexerBase.STATE_DEFAULT),
+                lex(new MSpecHighlightingLexer(), EDGE_CASES, 0, MSpecLexerBase.STATE_DEFAULT));
+    }
+
+    @Test
+    public void restartAtEveryToken() {
+        for (Map.Entry<String, String> spec : MSpecTestData.getSpecs().entrySet()) {
+            assertRestartable(spec.getKey(), spec.getValue());
+        }
+        assertRestartable("edge cases", EDGE_CASES);
+    }
+
+    /**
+     * Restarting either lexer at the start of any token, in the state that token reported, has to
+     * give the rest of the tokens of a run over the whole text.
+     */
+    private static void assertRestartable(String name, String text) {
+        List<Token> tokens = lex(new MSpecHighlightingLexer(), text, 0, MSpecLexerBase.STATE_DEFAULT);
+        MSpecHighlightingLexer highlightingLexer = new MSpecHighlightingLexer();
+        MSpecLexerAdapter antlrLexer = new MSpecLexerAdapter();
+        for (int i = 1; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            List<Token> expected = tokens.subList(i, tokens.size());
+            assertEquals(name + " restarted at " + token.start(), expected,
+                    lex(highlightingLexer, text, token.start(), token.state()));
+            assertEquals(name + " restarted at " + token.start() + " (ANTLR)", expected,
+                    lex(antlrLexer, text, token.start(), token.state()));
+        }
+    }
+
+    /**
+     * The tokens from the offset to the end of the text.
+     */
+    private static List<Token> lex(Lexer lexer, String text, int start, int state) {
+        List<Token> tokens = new ArrayList<>();
+        lexer.start(text, start, text.length(), state);
+        while (lexer.getTokenType() != null) {
+            tokens.add(new Token(lexer.getTokenType().toString(), lexer.getTokenStart(), lexer.getTokenEnd(),
+                    lexer.getState()));
+            lexer.advance();
+        }
+        return tokens;
+    }
+
+    private record Token(String type, int start, int end, int state) {
+    }
+}
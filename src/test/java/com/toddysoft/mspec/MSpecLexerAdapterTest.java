@@ -0,0 +1,57 @@
+package com.toddysoft.mspec;
+
+import com.intellij.lexer.Lexer;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Allocation benchmark of the ANTLR-based {@link MSpecLexerAdapter} over all sample specs.
+ * <p>
+ * Allocation is measured instead of time because it does not depend on the machine: the adapter
+ * itself allocates nothing per token, so what is left is the ANTLR simulation. That stays small
+ * only as long as the lexer's DFA cache is used, which a predicate at the left edge of a lexer
+ * rule turns off (about 15 KB per token).
+ */
+public class MSpecLexerAdapterTest {
+    private static final int REPEATS = 50;
+
+    @Test
+    public void allocatesLittlePerToken() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < REPEATS; i++) {
+            for (String spec : MSpecTestData.getSpecs().values()) {
+                text.append(spec).append('\n');
+            }
+        }
+        MSpecLexerAdapter lexer = new MSpecLexerAdapter();
+        // Fills the DFA cache, which is shared by all lexers
+        int tokens = countTokens(lexer, text);
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        assertEquals(tokens, countTokens(lexer, text));
+        long bytesPerToken = (allocations.getThreadAllocatedBytes(threadId) - before) / tokens;
+        assertTrue(tokens + " tokens, " + bytesPerToken + " bytes per token", bytesPerToken < 1024);
+    }
+
+    private static int countTokens(Lexer lexer, CharSequence text) {
+        int count = 0;
+        lexer.start(text, 0, text.length(), MSpecLexerBase.STATE_DEFAULT);
+        while (lexer.getTokenType() != null) {
+            count++;
+            lexer.advance();
+        }
+        return count;
+    }
+}
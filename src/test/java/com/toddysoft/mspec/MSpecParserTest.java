@@ -0,0 +1,340 @@
+package com.toddysoft.mspec;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilderFactory;
+import com.intellij.psi.PsiErrorElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.ParsingTestCase;
+import com.toddysoft.mspec.psi.MSpecTypeDeclaration;
+import com.toddysoft.mspec.util.MSpecTypeDefinitionScanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The PSI tree {@link MSpecParser} builds for the sample specs, with the lazily parsed type blocks
+ * expanded.
+ * <p>
+ * The trees are compared as a dump of the composite elements and the errors, without tokens and
+ * whitespace, so the expected trees stay readable and don't change with how whitespace is bound.
+ */
+public class MSpecParserTest extends ParsingTestCase {
+
+    // Left out of the structure dump, together with everything below them
+    private static final Set<IElementType> DETAILS = Set.of(MSpecTypes.ID_EXPRESSION, MSpecTypes.TYPE_REFERENCE,
+            MSpecTypes.DATA_TYPE, MSpecTypes.EXPRESSION, MSpecTypes.ATTRIBUTE_LIST, MSpecTypes.ARGUMENT_LIST);
+
+    public MSpecParserTest() {
+        super("", "mspec", new MSpecParserDefinition());
+    }
+
+    public void testSpecsParseWithoutErrors() {
+        for (Map.Entry<String, String> spec : MSpecTestData.getSpecs().entrySet()) {
+            if (spec.getKey().equals("unterminated.mspec")) {
+                continue;
+            }
+            PsiFile file = parse(spec.getValue());
+            assertEquals(spec.getKey(), spec.getValue(), file.getText());
+            assertEmpty(spec.getKey(), PsiTreeUtil.findChildrenOfType(file, PsiErrorElement.class));
+        }
+    }
+
+    public void testAllFieldsStructure() {
+        assertEquals("""
+            COMPLEX_TYPE_DEFINITION
+              TYPE_DEFINITION
+                FIELD_DEFINITION
+                  CONST_FIELD
+                FIELD_DEFINITION
+                  IMPLICIT_FIELD
+                FIELD_DEFINITION
+                  ARRAY_FIELD
+                FIELD_DEFINITION
+                  MANUAL_ARRAY_FIELD
+                FIELD_DEFINITION
+                  MANUAL_FIELD
+                FIELD_DEFINITION
+                  OPTIONAL_FIELD
+                FIELD_DEFINITION
+                  OPTIONAL_FIELD
+                FIELD_DEFINITION
+                  PADDING_FIELD
+                FIELD_DEFINITION
+                  RESERVED_FIELD
+                FIELD_DEFINITION
+                  CHECKSUM_FIELD
+                FIELD_DEFINITION
+                  VALIDATION_FIELD
+                FIELD_DEFINITION
+                  ASSERT_FIELD
+                FIELD_DEFINITION
+                  PEEK_FIELD
+                FIELD_DEFINITION
+                  ABSTRACT_FIELD
+                FIELD_DEFINITION
+                  VIRTUAL_FIELD
+                FIELD_DEFINITION
+                  STATE_FIELD
+                FIELD_DEFINITION
+                  UNKNOWN_FIELD
+                FIELD_DEFINITION
+                  ENUM_FIELD
+                FIELD_DEFINITION
+                  DISCRIMINATOR_FIELD
+                FIELD_DEFINITION
+                  SIMPLE_FIELD
+                BATCH_SET_DEFINITION
+                  FIELD_DEFINITION
+                    SIMPLE_FIELD
+                FIELD_DEFINITION
+                  TYPESWITCH_FIELD
+                    CASE_STATEMENT
+                      FIELD_DEFINITION
+                        SIMPLE_FIELD
+                    CASE_STATEMENT
+                    CASE_STATEMENT
+            COMPLEX_TYPE_DEFINITION
+              ENUM_DEFINITION
+                ENUM_VALUE_DEFINITION
+                ENUM_VALUE_DEFINITION
+            COMPLEX_TYPE_DEFINITION
+              ENUM_DEFINITION
+                ENUM_VALUE_DEFINITION
+            COMPLEX_TYPE_DEFINITION
+              DATAIO_DEFINITION
+                FIELD_DEFINITION
+                  TYPESWITCH_FIELD
+                    CASE_STATEMENT
+                      FIELD_DEFINITION
+                        RESERVED_FIELD
+                      FIELD_DEFINITION
+                        SIMPLE_FIELD
+                    CASE_STATEMENT
+                      FIELD_DEFINITION
+                        SIMPLE_FIELD
+                    CASE_STATEMENT
+                      FIELD_DEFINITION
+                        ARRAY_FIELD
+            COMPLEX_TYPE_DEFINITION
+              DISCRIMINATED_TYPE_DEFINITION
+                FIELD_DEFINITION
+                  DISCRIMINATOR_FIELD
+                FIELD_DEFINITION
+                  TYPESWITCH_FIELD
+                    CASE_STATEMENT
+                      FIELD_DEFINITION
+                        ARRAY_FIELD
+            """, dump(parse(MSpecTestData.load("all-fields.mspec")), false));
+    }
+
+    public void testFieldDetails() {
+        assertEquals("""
+            COMPLEX_TYPE_DEFINITION
+              TYPE_DEFINITION
+                ID_EXPRESSION T
+                ARGUMENT_LIST
+                  ARGUMENT
+                    TYPE_REFERENCE
+                      DATA_TYPE
+                    ID_EXPRESSION n
+                FIELD_DEFINITION
+                  ARRAY_FIELD
+                    TYPE_REFERENCE
+                      COMPLEX_TYPE_REFERENCE
+                        EXPRESSION
+                          ID_EXPRESSION n
+                    ID_EXPRESSION items
+                    EXPRESSION
+                      ID_EXPRESSION n
+                  ATTRIBUTE_LIST
+                    ATTRIBUTE
+                      ID_EXPRESSION byteOrder
+                      EXPRESSION
+                        ID_EXPRESSION BIG_ENDIAN
+            """, dump(parse("[type T(uint 8 n)\n    [array Foo('n') items count 'n' byteOrder='BIG_ENDIAN']\n]\n"), true));
+    }
+
+    /**
+     * A field without its closing bracket doesn't swallow the fields after it. The block it is in
+     * only ends where the brackets balance, here at the end of the file, so the later definitions
+     * become broken fields of the first one.
+     */
+    public void testUnterminatedBlocks() {
+        assertEquals("""
+            COMPLEX_TYPE_DEFINITION
+              TYPE_DEFINITION
+                ID_EXPRESSION A
+                FIELD_DEFINITION
+                  SIMPLE_FIELD
+                    TYPE_REFERENCE
+                      DATA_TYPE
+                    ID_EXPRESSION a
+                  ERROR: ']' expected
+                FIELD_DEFINITION
+                  SIMPLE_FIELD
+                    TYPE_REFERENCE
+                      COMPLEX_TYPE_REFERENCE
+                    ID_EXPRESSION b
+                FIELD_DEFINITION
+                  ARRAY_FIELD
+                    TYPE_REFERENCE
+                      DATA_TYPE
+                    ERROR: Identifier expected
+                FIELD_DEFINITION
+                  ENUM_FIELD
+                    TYPE_REFERENCE
+                      COMPLEX_TYPE_REFERENCE
+                    ERROR: Identifier expected
+                FIELD_DEFINITION
+                  ERROR: Field type expected
+                  ERROR: ']' expected
+                FIELD_DEFINITION
+                  ERROR: Field type expected
+                  ERROR: ']' expected
+                FIELD_DEFINITION
+                  SIMPLE_FIELD
+                    TYPE_REFERENCE
+                      DATA_TYPE
+                    ID_EXPRESSION c
+            """, dump(parse(MSpecTestData.load("unterminated.mspec")), true));
+    }
+
+    public void testMissingClosingBracketAtEndOfFile() {
+        assertEquals("""
+            COMPLEX_TYPE_DEFINITION
+              TYPE_DEFINITION
+                ID_EXPRESSION A
+                FIELD_DEFINITION
+                  SIMPLE_FIELD
+                    TYPE_REFERENCE
+                      DATA_TYPE
+                    ID_EXPRESSION a
+              ERROR: ']' expected
+            """, dump(parse("[type A\n    [simple uint 8 a]\n"), true));
+    }
+
+    public void testTextBetweenBlocks() {
+        assertEquals("""
+            COMPLEX_TYPE_DEFINITION
+              TYPE_DEFINITION
+                ID_EXPRESSION A
+            ERROR: '[' expected
+            ERROR: '[' expected
+            COMPLEX_TYPE_DEFINITION
+              ENUM_DEFINITION
+                ID_EXPRESSION B
+                ENUM_VALUE_DEFINITION
+                  ID_EXPRESSION X
+            """, dump(parse("[type A]\nfoo bar\n[enum B\n    [X]\n]\n"), true));
+    }
+
+    /**
+     * The named type declarations of the tree are the types the text scanner finds.
+     */
+    public void testTypeDeclarationsMatchScanner() {
+        for (Map.Entry<String, String> spec : MSpecTestData.getSpecs().entrySet()) {
+            if (spec.getKey().equals("unterminated.mspec")) {
+                continue;
+            }
+            List<String> declared = new ArrayList<>();
+            for (MSpecTypeDeclaration declaration
+                    : PsiTreeUtil.findChildrenOfType(parse(spec.getValue()), MSpecTypeDeclaration.class)) {
+                if (declaration.getName() != null) {
+                    declared.add(declaration.getName());
+                }
+            }
+            assertEquals(spec.getKey(), new ArrayList<>(MSpecTypeDefinitionScanner.scan(spec.getValue())), declared);
+        }
+    }
+
+    /**
+     * Regression benchmark over a 10,000 line spec. The work is counted as characters read from the
+     * text by the lexer and the parser, which unlike the time doesn't depend on the machine: 8 times
+     * the text has to be about 8 times the reads, not 64 times.
+     */
+    public void testParseWorkIsLinearInSize() {
+        String small = manyTypes(125);
+        String large = manyTypes(1_000);
+        assertEquals(10_000, large.split("\n").length);
+        long smallReads = countReads(small);
+        long largeReads = countReads(large);
+        assertTrue(smallReads + " reads for " + small.length() + " chars, " + largeReads + " reads for "
+                + large.length() + " chars", largeReads < smallReads * 12);
+    }
+
+    private static String manyTypes(int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append("[discriminatedType T").append(i).append("(uint 8 n)\n")
+                    .append("    [discriminator uint 8 kind]\n")
+                    .append("    [array Item('n') items count 'n * 2']\n")
+                    .append("    [optional uint 16 value 'kind == 1']\n")
+                    .append("    [typeSwitch kind\n")
+                    .append("        ['1' *Case").append(i).append("\n")
+                    .append("            [simple uint 8 x]\n")
+                    .append("        ]\n")
+                    .append("    ]\n")
+                    .append("]\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Parses the text as a file and then each of its blocks on its own, the way they are parsed when
+     * first expanded, and returns how many characters were read from the text.
+     */
+    private long countReads(String text) {
+        CountingText fileText = new CountingText(text);
+        ASTNode file = new MSpecParser().parse(MSpecParserDefinition.FILE, createBuilder(fileText));
+        long reads = fileText.getReads();
+        for (ASTNode block = file.getFirstChildNode(); block != null; block = block.getTreeNext()) {
+            if (block.getElementType() == MSpecTypes.COMPLEX_TYPE_DEFINITION) {
+                CountingText blockText = new CountingText(block.getText());
+                new MSpecParser().parse(MSpecTypes.COMPLEX_TYPE_DEFINITION, createBuilder(blockText));
+                reads += blockText.getReads();
+            }
+        }
+        return reads;
+    }
+
+    private PsiBuilder createBuilder(CharSequence text) {
+        MSpecParserDefinition definition = new MSpecParserDefinition();
+        return PsiBuilderFactory.getInstance().createBuilder(definition, definition.createLexer(getProject()), text);
+    }
+
+    private PsiFile parse(String text) {
+        PsiFile file = createPsiFile("test", text);
+        ensureParsed(file);
+        return file;
+    }
+
+    /**
+     * The composite elements and errors of the tree, one per line and indented by depth. An
+     * identifier shows its text.
+     */
+    private static String dump(PsiFile file, boolean details) {
+        StringBuilder result = new StringBuilder();
+        dump(file.getNode(), 0, details, result);
+        return result.toString();
+    }
+
+    private static void dump(ASTNode node, int depth, boolean details, StringBuilder result) {
+        for (ASTNode child = node.getFirstChildNode(); child != null; child = child.getTreeNext()) {
+            if (child.getPsi() instanceof PsiErrorElement error) {
+                result.append("  ".repeat(depth)).append("ERROR: ").append(error.getErrorDescription()).append('\n');
+            } else if (child.getPsi() instanceof MSpecPsiElement && (details || !DETAILS.contains(child.getElementType()))) {
+                result.append("  ".repeat(depth)).append(child.getElementType());
+                if (child.getElementType() == MSpecTypes.ID_EXPRESSION) {
+                    result.append(' ').append(child.getText());
+                }
+                result.append('\n');
+                dump(child, depth + 1, details, result);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.toddysoft.mspec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The MSpec sources the tests run on: the example of the repository plus the specs under
+ * {@code src/test/resources/specs}.
+ */
+public final class MSpecTestData {
+    // Relative to the project directory, which Gradle runs the tests in
+    private static final Path EXAMPLE = Path.of("examples", "sample.mspec");
+    private static final String[] SPECS = {"all-fields.mspec", "unterminated.mspec"};
+
+    private MSpecTestData() {
+    }
+
+    /**
+     * All sample specs by name, in a fixed order.
+     */
+    public static Map<String, String> getSpecs() {
+        Map<String, String> specs = new LinkedHashMap<>();
+        try {
+            specs.put(EXAMPLE.toString(), Files.readString(EXAMPLE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (String name : SPECS) {
+            specs.put(name, load(name));
+        }
+        return specs;
+    }
+
+    public static String load(String name) {
+        try (InputStream stream = MSpecTestData.class.getResourceAsStream("/specs/" + name)) {
+            if (stream == null) {
+                throw new IllegalArgumentException("No test spec " + name);
+            }
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.toddysoft.mspec.util;
+
+import com.toddysoft.mspec.CountingText;
+import com.toddysoft.mspec.MSpecTestData;
+import com.toddysoft.mspec.util.MSpecFileModel.Role;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MSpecFileModelTest {
+
+    private static final String SPEC = """
+            [type Foo(uint 8 len, Bar b)
+                [simple uint 8 size]
+                [simple Bar bar]
+                [array byte data count 'len - 1']
+                [typeSwitch size, bar.x
+                    ['0x01' *Sub
+                        [simple uint 16 y]
+                    ]
+                ]
+            ]
+            [enum uint 8 Color
+                ['0x01' RED]
+            ]
+            """;
+
+    @Test
+    public void definitions() {
+        MSpecFileModel model = MSpecFileModel.build(SPEC);
+        assertEquals(Role.DEFINITION_KEYWORD, role(model, SPEC, "type"));
+        assertEquals(Role.DEFINITION_NAME, role(model, SPEC, "Foo"));
+        assertEquals(Role.DEFINITION_KEYWORD, role(model, SPEC, "enum"));
+        assertEquals(Role.DATA_TYPE, role(model, SPEC, "uint 8 Color"));
+        assertEquals(Role.DEFINITION_NAME, role(model, SPEC, "Color"));
+        assertEquals(Role.CASE_NAME, role(model, SPEC, "RED"));
+    }
+
+    @Test
+    public void parametersAreNoFields() {
+        MSpecFileModel model = MSpecFileModel.build(SPEC);
+        assertEquals(Role.OTHER, role(model, SPEC, "uint 8 len"));
+        assertEquals(Role.OTHER, role(model, SPEC, "len,"));
+        assertEquals(Role.OTHER, role(model, SPEC, "Bar b)"));
+    }
+
+    @Test
+    public void fields() {
+        MSpecFileModel model = MSpecFileModel.build(SPEC);
+        assertEquals(Role.FIELD_KEYWORD, role(model, SPEC, "simple"));
+        assertEquals(Role.DATA_TYPE, role(model, SPEC, "uint 8 size"));
+        assertTrue(model.isFollowedByNumber(SPEC.indexOf("uint 8 size")));
+        assertEquals(Role.FIELD_NAME, role(model, SPEC, "size]"));
+        assertEquals(Role.TYPE_REFERENCE, role(model, SPEC, "Bar bar"));
+        assertFalse(model.isFollowedByNumber(SPEC.indexOf("Bar bar")));
+        assertEquals(Role.FIELD_NAME, role(model, SPEC, "bar]"));
+    }
+
+    @Test
+    public void arrayLoopType() {
+        MSpecFileModel model = MSpecFileModel.build(SPEC);
+        assertEquals(Role.FIELD_KEYWORD, role(model, SPEC, "array"));
+        assertEquals(Role.DATA_TYPE, role(model, SPEC, "byte"));
+        assertEquals(Role.FIELD_NAME, role(model, SPEC, "data"));
+        assertEquals(Role.LOOP_TYPE, role(model, SPEC, "count"));
+        assertEquals(Role.EXPRESSION, role(model, SPEC, "len - 1"));
+    }
+
+    @Test
+    public void typeSwitch() {
+        MSpecFileModel model = MSpecFileModel.build(SPEC);
+        assertEquals(Role.FIELD_KEYWORD, role(model, SPEC, "typeSwitch"));
+        assertEquals(Role.FIELD_REFERENCE, role(model, SPEC, "size,"));
+        assertEquals(Role.FIELD_REFERENCE, role(model, SPEC, "bar.x"));
+        assertEquals(Role.CASE_NAME, role(model, SPEC, "Sub"));
+        assertEquals(Role.FIELD_NAME, role(model, SPEC, "y]"));
+    }
+
+    @Test
+    public void stateFieldHasNoDataType() {
+        String text = "[type T\n    [state stateName]\n    [simple uint 8 after]\n]";
+        MSpecFileModel model = MSpecFileModel.build(text);
+        assertEquals(Role.FIELD_KEYWORD, role(model, text, "state "));
+        assertEquals(Role.FIELD_NAME, role(model, text, "stateName"));
+        assertEquals(Role.FIELD_NAME, role(model, text, "after"));
+    }
+
+    @Test
+    public void batchSetHasNoDataType() {
+        String text = "[type T\n    [batchSet byteOrder='LITTLE_ENDIAN'\n        [simple Foo foo]\n    ]\n]";
+        MSpecFileModel model = MSpecFileModel.build(text);
+        assertEquals(Role.FIELD_KEYWORD, role(model, text, "batchSet"));
+        assertEquals(Role.OTHER, role(model, text, "byteOrder"));
+        assertEquals(Role.TYPE_REFERENCE, role(model, text, "Foo"));
+        assertEquals(Role.FIELD_NAME, role(model, text, "foo]"));
+    }
+
+    @Test
+    public void fieldAfterUnterminatedField() {
+        String text = MSpecTestData.load("unterminated.mspec");
+        MSpecFileModel model = MSpecFileModel.build(text);
+        assertEquals(Role.TYPE_REFERENCE, role(model, text, "Foo"));
+        assertEquals(Role.FIELD_NAME, role(model, text, "b]"));
+    }
+
+    /**
+     * Regression benchmark for the context regexes the model replaced, which backtracked over
+     * everything before a word on long lines and dense brackets. Each input grows eightfold; the
+     * characters read to build the model have to grow about as much, not 64 times.
+     */
+    @Test
+    public void buildWorkIsLinearOnPathologicalInput() {
+        String[] patterns = {
+                // One long line of array headers that never close
+                "[array a b c d ",
+                // Long runs of whitespace between words and brackets
+                "[a      b      \t\t     c    ",
+                // Deep nesting
+                "[[[[[[[[ x ",
+                // A tick opened in every bracket, and closed again in the next one
+                "[simple uint 8 'a[b] ",
+        };
+        for (String pattern : patterns) {
+            CountingText small = new CountingText("[type T " + pattern.repeat(4_000));
+            CountingText large = new CountingText("[type T " + pattern.repeat(32_000));
+            MSpecFileModel.build(small);
+            MSpecFileModel.build(large);
+            assertTrue(pattern + ": " + small.getReads() + " reads for " + small.length() + " chars, "
+                            + large.getReads() + " reads for " + large.length() + " chars",
+                    large.getReads() < small.getReads() * 12);
+        }
+    }
+
+    /**
+     * The role of the word at the first occurrence of the marker.
+     */
+    static Role role(MSpecFileModel model, String text, String marker) {
+        int offset = text.indexOf(marker);
+        assertTrue("No " + marker, offset >= 0);
+        return model.getRole(offset);
+    }
+}
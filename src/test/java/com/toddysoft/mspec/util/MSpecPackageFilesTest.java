@@ -0,0 +1,77 @@
+package com.toddysoft.mspec.util;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.roots.ContentEntry;
+import com.intellij.openapi.roots.ModuleRootModificationUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class MSpecPackageFilesTest extends BasePlatformTestCase {
+    private static final int ROOTS = 500;
+
+    /**
+     * The walk over many source roots gives the same files in the same order on one thread and in
+     * parallel, and the same packages as the map built from the index.
+     */
+    public void testManySourceRoots() throws IOException {
+        List<VirtualFile> roots = new ArrayList<>();
+        for (int i = 0; i < ROOTS; i++) {
+            VirtualFile root = myFixture.getTempDirFixture().findOrCreateDir("roots/r" + i);
+            myFixture.getTempDirFixture().createFile("roots/r" + i + "/top.mspec", "[type Top" + i + "\n]\n");
+            myFixture.getTempDirFixture().createFile("roots/r" + i + "/p/q/a.mspec", "[type A" + i + "\n]\n");
+            myFixture.getTempDirFixture().createFile("roots/r" + i + "/p/q/b.mspec", "[type B" + i + "\n]\n");
+            roots.add(root);
+        }
+        ModuleRootModificationUtil.updateModel(getModule(), model -> {
+            for (VirtualFile root : roots) {
+                model.addContentEntry(root).addSourceFolder(root, false);
+            }
+        });
+        try {
+            MSpecPackageFiles packageFiles = MSpecPackageFiles.getInstance(getProject());
+
+            long start = System.nanoTime();
+            List<List<VirtualFile>> serial = packageFiles.collectFromSourceRoots();
+            long serialTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            List<List<VirtualFile>> parallel = ProgressManager.getInstance().runProcess(
+                    packageFiles::collectFromSourceRoots, new EmptyProgressIndicator());
+            long parallelTime = System.nanoTime() - start;
+            System.out.printf("%d source roots: %d ms on one thread, %d ms in parallel%n",
+                    serial.size(), serialTime / 1_000_000, parallelTime / 1_000_000);
+
+            assertEquals(serial, parallel);
+            Map<MSpecPackageUtil.PackageKey, Set<VirtualFile>> walked = new LinkedHashMap<>();
+            for (List<VirtualFile> files : serial) {
+                for (VirtualFile file : files) {
+                    walked.computeIfAbsent(MSpecPackageUtil.getPackageKey(getProject(), file.getParent()),
+                            key -> new HashSet<>()).add(file);
+                }
+            }
+            assertEquals(3 * ROOTS, walked.values().stream().mapToInt(Set::size).sum());
+            assertEquals(walked.keySet(), new HashSet<>(packageFiles.getPackages()));
+            for (Map.Entry<MSpecPackageUtil.PackageKey, Set<VirtualFile>> entry : walked.entrySet()) {
+                assertEquals(entry.getValue(), new HashSet<>(packageFiles.getFiles(entry.getKey())));
+            }
+            assertEquals(2 * ROOTS, packageFiles.getFiles(
+                    MSpecPackageUtil.getPackageKey(getProject(), roots.get(0).findFileByRelativePath("p/q"))).size());
+        } finally {
+            ModuleRootModificationUtil.updateModel(getModule(), model -> {
+                for (ContentEntry entry : model.getContentEntries()) {
+                    if (roots.contains(entry.getFile())) {
+                        model.removeContentEntry(entry);
+                    }
+                }
+            });
+        }
+    }
+}
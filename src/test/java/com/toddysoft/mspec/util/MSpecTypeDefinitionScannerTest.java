@@ -0,0 +1,120 @@
+package com.toddysoft.mspec.util;
+
+import com.toddysoft.mspec.CountingText;
+import com.toddysoft.mspec.MSpecTestData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MSpecTypeDefinitionScannerTest {
+
+    @Test
+    public void typeHeaders() {
+        String text = "[type A\n]\n[discriminatedType B(uint 8 n)\n]\n[dataIo C\n]\n";
+        assertEquals(List.of("A TYPE", "B DISCRIMINATED_TYPE", "C DATA_IO"), scan(text));
+        MSpecTypeTable table = MSpecTypeDefinitionScanner.scan(text);
+        assertEquals(text.indexOf("A"), table.getOffset(table.indexOf("A")));
+        assertEquals(text.indexOf("B("), table.getOffset(table.indexOf("B")));
+        assertEquals(text.indexOf("C\n"), table.getOffset(table.indexOf("C")));
+    }
+
+    @Test
+    public void enumDefinitions() {
+        assertEquals(List.of("Plain ENUM", "Sized ENUM", "Flag ENUM", "Attributed ENUM"),
+                scan("[enum Plain\n    [A]\n]\n"
+                        + "[enum uint 8 Sized(string 8 name)\n    ['1' ONE ['\"one\"']]\n]\n"
+                        + "[enum bit Flag\n    ['true' ON]\n]\n"
+                        + "[enum Attributed byteOrder='BIG_ENDIAN'\n    [A]\n]\n"));
+    }
+
+    @Test
+    public void enumFieldIsNoDefinition() {
+        assertEquals(List.of("T TYPE"), scan("[type T\n    [enum Color color]\n    [enum Color color name]\n]\n"));
+    }
+
+    /**
+     * A name after the type name makes an enum field, also while the field is still being typed;
+     * the type name alone at the end of the text is taken as a definition.
+     */
+    @Test
+    public void enumNameFollowedByName() {
+        assertEquals(List.of(), scan("[enum Name name"));
+        assertEquals(List.of("Name ENUM"), scan("[enum Name"));
+        assertEquals(List.of("Name ENUM"), scan("[enum Name name='x'"));
+    }
+
+    @Test
+    public void wildcardCases() {
+        assertEquals(List.of("Msg DISCRIMINATED_TYPE", "MsgRequest CASE", "MsgDefault CASE", "MsgOther CASE"),
+                scan("[discriminatedType Msg\n    [typeSwitch t\n"
+                        + "        ['0x01', '2' *Request]\n"
+                        + "        [* *Default]\n"
+                        + "        ['3' Plain]\n"
+                        + "        [*Other]\n"
+                        + "    ]\n]\n"));
+    }
+
+    @Test
+    public void casesBelongToTheLastTypeHeader() {
+        assertEquals(List.of("A TYPE", "AX CASE", "B TYPE", "BY CASE"),
+                scan("[type A [typeSwitch t ['1' *X]]]\n[type B [typeSwitch t ['1' *Y]]]\n"));
+    }
+
+    @Test
+    public void firstDefinitionWins() {
+        String text = "[type A\n]\n[enum A\n]\n";
+        MSpecTypeTable table = MSpecTypeDefinitionScanner.scan(text);
+        assertEquals(List.of("A TYPE"), scan(text));
+        assertEquals(text.indexOf("A"), table.getOffset(0));
+    }
+
+    @Test
+    public void missingBracketDoesNotHideLaterDefinitions() {
+        assertEquals(List.of("A TYPE", "B ENUM", "C TYPE"), scan(MSpecTestData.load("unterminated.mspec")));
+    }
+
+    @Test
+    public void allFieldTypes() {
+        assertEquals(List.of("Foo TYPE", "FooSub CASE", "FooDefault CASE", "Color ENUM", "Plain ENUM",
+                        "DataItem DATA_IO", "Msg DISCRIMINATED_TYPE"),
+                scan(MSpecTestData.load("all-fields.mspec")));
+    }
+
+    /**
+     * Regression benchmark: wildcard cases used to look back for their enclosing type, which made
+     * the scan quadratic in the number of cases. Counts the characters read instead of timing the
+     * scan, so that the result does not depend on the machine.
+     */
+    @Test
+    public void scanWorkIsLinearInCases() {
+        CountingText small = new CountingText(manyCases(2_000));
+        CountingText large = new CountingText(manyCases(16_000));
+        MSpecTypeDefinitionScanner.scan(small);
+        assertEquals(16_001, MSpecTypeDefinitionScanner.scan(large).size());
+        // 8 times the cases: about 8 times the reads if linear, 64 times if quadratic
+        assertTrue("2000 cases: " + small.getReads() + " reads, 16000 cases: " + large.getReads() + " reads",
+                large.getReads() < small.getReads() * 12);
+    }
+
+    private static String manyCases(int count) {
+        StringBuilder text = new StringBuilder("[discriminatedType Msg\n    [discriminator uint 8 t]\n    [typeSwitch t\n");
+        for (int i = 0; i < count; i++) {
+            text.append("        ['").append(i).append("' *Case").append(i).append("\n")
+                    .append("            [simple uint 8 f").append(i).append("]\n        ]\n");
+        }
+        return text.append("    ]\n]\n").toString();
+    }
+
+    private static List<String> scan(String text) {
+        MSpecTypeTable table = MSpecTypeDefinitionScanner.scan(text);
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < table.size(); i++) {
+            result.add(table.getName(i) + " " + table.getKind(i));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+package com.toddysoft.mspec.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class MSpecTypeTableTest {
+
+    @Test
+    public void firstEntryForNameWins() {
+        MSpecTypeTable.Builder builder = new MSpecTypeTable.Builder();
+        assertTrue(builder.add("Foo", MSpecTypeDefinition.Kind.TYPE, 1));
+        assertTrue(builder.add("Bar", MSpecTypeDefinition.Kind.ENUM, 2));
+        assertFalse(builder.add("Foo", MSpecTypeDefinition.Kind.DATA_IO, 3));
+        MSpecTypeTable table = builder.build();
+
+        assertEquals(List.of("Foo", "Bar"), List.copyOf(table));
+        int foo = table.indexOf("Foo");
+        assertEquals(MSpecTypeDefinition.Kind.TYPE, table.getKind(foo));
+        assertEquals(1, table.getOffset(foo));
+    }
+
+    /**
+     * Enough names to grow the builder and to collide in the slots of the table.
+     */
+    @Test
+    public void findsEveryName() {
+        MSpecTypeTable.Builder builder = new MSpecTypeTable.Builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.add("Type" + i, MSpecTypeDefinition.Kind.CASE, i);
+        }
+        MSpecTypeTable table = builder.build();
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i++) {
+            int index = table.indexOf("Type" + i);
+            assertEquals("Type" + i, table.getName(index));
+            assertEquals(i, table.getOffset(index));
+        }
+        assertEquals(-1, table.indexOf("Type1000"));
+        assertEquals(-1, table.indexOf(42));
+        assertFalse(MSpecTypeTable.EMPTY.contains("Type0"));
+    }
+
+    @Test
+    public void tablesShareNames() {
+        MSpecTypeTable first = new MSpecTypeTable.Builder()
+                .addAll(MSpecTypeDefinitionScanner.scan("[type Shared\n]\n"))
+                .build();
+        MSpecTypeTable second = MSpecTypeDefinitionScanner.scan("[enum uint 8 Shared\n]\n");
+        assertSame(first.getName(0), second.getName(0));
+    }
+
+    @Test
+    public void mapRoundTrip() {
+        MSpecTypeTable table = MSpecTypeDefinitionScanner.scan("[type A\n]\n[enum B\n]\n[type C\n    ['1' *D]\n]\n");
+        Map<String, MSpecTypeDefinition> map = table.toMap();
+        assertEquals(List.of("A", "B", "C", "CD"), List.copyOf(map.keySet()));
+        assertEquals(table, MSpecTypeTable.of(map));
+        assertEquals(map, MSpecTypeTable.of(map).toMap());
+    }
+
+    /**
+     * The tables of a package of 200 files with 50 types each, plus the table of the package, against
+     * the maps from name to offset they replaced. The names are the same objects in both, so what
+     * differs is the overhead per entry: a map entry and a boxed offset against a few array slots.
+     */
+    @Test
+    public void retainsLessThanMaps() {
+        assumeTrue(ObjectGraphSize.isSupported());
+        List<MSpecTypeTable> tables = new ArrayList<>();
+        List<Map<String, Integer>> maps = new ArrayList<>();
+        MSpecTypeTable.Builder packageTable = new MSpecTypeTable.Builder();
+        Map<String, Integer> packageMap = new LinkedHashMap<>();
+        for (int file = 0; file < 200; file++) {
+            MSpecTypeTable.Builder table = new MSpecTypeTable.Builder();
+            Map<String, Integer> map = new LinkedHashMap<>();
+            for (int type = 0; type < 50; type++) {
+                int offset = 1000 + type * 200;
+                table.add("Type" + file + "_" + type, MSpecTypeDefinition.Kind.TYPE, offset);
+            }
+            MSpecTypeTable built = table.build();
+            for (int i = 0; i < built.size(); i++) {
+                map.put(built.getName(i), built.getOffset(i));
+            }
+            tables.add(built);
+            maps.add(map);
+            packageTable.addAll(built);
+            map.forEach(packageMap::putIfAbsent);
+        }
+
+        long tableSize = ObjectGraphSize.of(tables, packageTable.build());
+        long mapSize = ObjectGraphSize.of(maps, packageMap);
+        assertTrue("tables: " + tableSize + " bytes, maps: " + mapSize + " bytes", tableSize * 3 < mapSize * 2);
+    }
+}
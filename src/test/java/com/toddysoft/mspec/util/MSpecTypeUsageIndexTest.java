@@ -0,0 +1,108 @@
+package com.toddysoft.mspec.util;
+
+import com.toddysoft.mspec.MSpecTestData;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MSpecTypeUsageIndexTest {
+
+    @Test
+    public void simpleField() {
+        String text = "[type Foo\n    [simple Bar bar]\n]\n";
+        assertEquals(Map.of("Bar", IntList.of(text.indexOf("Bar"))), MSpecTypeUsageIndex.extractTypeReferences(text));
+    }
+
+    @Test
+    public void arrayOptionalEnumAndManualFields() {
+        String text = """
+                [type Foo(uint 8 len)
+                    [array Item items count 'len']
+                    [optional Bar('1', 'len') maybe 'len > 0']
+                    [enum Color color]
+                    [manual Baz value 'a' 'b' 'c']
+                ]
+                """;
+        Map<String, IntList> references = MSpecTypeUsageIndex.extractTypeReferences(text);
+
+        assertEquals(Set.of("Item", "Bar", "Color", "Baz"), references.keySet());
+        assertEquals(IntList.of(text.indexOf("Item")), references.get("Item"));
+        assertEquals(IntList.of(text.indexOf("Bar")), references.get("Bar"));
+        assertEquals(IntList.of(text.indexOf("Color")), references.get("Color"));
+        assertEquals(IntList.of(text.indexOf("Baz")), references.get("Baz"));
+    }
+
+    @Test
+    public void primitiveTypesAndExpressionsAreNoReferences() {
+        String text = """
+                [type Foo
+                    [simple uint 8 len]
+                    [array byte data count 'Bar.size']
+                    [virtual bit isSet 'Color.RED == len']
+                ]
+                """;
+        assertEquals(Map.of(), MSpecTypeUsageIndex.extractTypeReferences(text));
+    }
+
+    @Test
+    public void fieldsInTypeSwitchCases() {
+        String text = """
+                [discriminatedType Msg
+                    [discriminator uint 8 kind]
+                    [typeSwitch kind
+                        ['0x01' Req
+                            [simple Header header]
+                            [array Item items count '3']
+                        ]
+                        ['0x02' Res
+                            [simple Header header]
+                        ]
+                    ]
+                ]
+                """;
+        Map<String, IntList> references = MSpecTypeUsageIndex.extractTypeReferences(text);
+
+        assertEquals(Set.of("Header", "Item"), references.keySet());
+        int first = text.indexOf("Header");
+        assertEquals(IntList.of(first, text.indexOf("Header", first + 1)), references.get("Header"));
+    }
+
+    @Test
+    public void topLevelEnumIsADefinition() {
+        String text = """
+                [enum uint 8 Color
+                    ['0x01' RED]
+                ]
+                [enum Plain
+                    [A]
+                ]
+                [type Foo
+                    [enum Color color]
+                ]
+                """;
+        Map<String, IntList> references = MSpecTypeUsageIndex.extractTypeReferences(text);
+
+        assertEquals(Map.of("Color", IntList.of(text.lastIndexOf("Color"))), references);
+    }
+
+    @Test
+    public void sampleSpecs() {
+        Map<String, IntList> references = MSpecTypeUsageIndex.extractTypeReferences(MSpecTestData.load("all-fields.mspec"));
+
+        assertEquals(Set.of("Item", "Bar", "Color"), references.keySet());
+        for (Map.Entry<String, String> spec : MSpecTestData.getSpecs().entrySet()) {
+            for (Map.Entry<String, IntList> entry : MSpecTypeUsageIndex.extractTypeReferences(spec.getValue()).entrySet()) {
+                IntList offsets = entry.getValue();
+                for (int i = 0; i < offsets.size(); i++) {
+                    assertTrue(spec.getValue().startsWith(entry.getKey(), offsets.getInt(i)));
+                    assertTrue(i == 0 || offsets.getInt(i - 1) < offsets.getInt(i));
+                }
+            }
+        }
+    }
+}
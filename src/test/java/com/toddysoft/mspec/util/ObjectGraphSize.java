@@ -0,0 +1,123 @@
+package com.toddysoft.mspec.util;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Estimates the heap retained by a graph of objects, the way a heap dump would add it up, for tests
+ * comparing the footprint of data structures. Each object reachable from the roots through instance
+ * fields is counted once. Classes and enum constants are shared by everything and not counted.
+ * <p>
+ * The sizes follow the layout of a 64-bit HotSpot JVM with compressed references: a 12 byte object
+ * header, 16 bytes for an array header, 4 byte references and objects aligned to 8 bytes. Reading
+ * the fields of JDK classes needs {@code --add-opens java.base/java.util=ALL-UNNAMED} and the same
+ * for {@code java.lang}, which the platform's test runner passes; see {@link #isSupported()}.
+ */
+final class ObjectGraphSize {
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    private ObjectGraphSize() {
+    }
+
+    /**
+     * Whether the fields of JDK collections and strings can be read in this JVM.
+     */
+    static boolean isSupported() {
+        try {
+            return HashMap.class.getDeclaredField("table").trySetAccessible()
+                    && String.class.getDeclaredField("value").trySetAccessible();
+        } catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    static long of(Object... roots) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> pending = new ArrayDeque<>();
+        for (Object root : roots) {
+            if (root != null && seen.add(root)) {
+                pending.push(root);
+            }
+        }
+        long size = 0;
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                Class<?> component = type.getComponentType();
+                int length = Array.getLength(object);
+                size += align(ARRAY_HEADER + (long) length * sizeOf(component));
+                if (!component.isPrimitive()) {
+                    for (int i = 0; i < length; i++) {
+                        visit(Array.get(object, i), seen, pending);
+                    }
+                }
+                continue;
+            }
+            long shallow = OBJECT_HEADER;
+            for (Field field : instanceFields(type)) {
+                shallow += sizeOf(field.getType());
+                if (!field.getType().isPrimitive()) {
+                    visit(get(field, object), seen, pending);
+                }
+            }
+            size += align(shallow);
+        }
+        return size;
+    }
+
+    private static void visit(Object object, Set<Object> seen, Deque<Object> pending) {
+        if (object != null && !(object instanceof Class) && !(object instanceof Enum) && seen.add(object)) {
+            pending.push(object);
+        }
+    }
+
+    private static List<Field> instanceFields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static Object get(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int sizeOf(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}